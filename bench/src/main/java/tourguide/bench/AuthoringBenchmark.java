@@ -0,0 +1,62 @@
+package tourguide.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tourguide.Annotation;
+import tourguide.Controller;
+import tourguide.Status;
+import tourguide.TourCatalog;
+
+/**
+ * Throughput of authoring whole tours through the Controller protocol.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthoringBenchmark {
+
+    @Param({"10", "100"})
+    public int waypoints;
+
+    @Param({"OFF", "INFO"})
+    public String logLevel;
+
+    private final Annotation leg = new Annotation("Follow the path");
+    private final Annotation stop = new Annotation("Look around");
+    private Controller controller;
+    private int tours;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        BenchmarkLogging.configure(logLevel);
+        // A fresh catalog per iteration keeps the heap from filling up with finished tours.
+        controller = new TourCatalog(10.0, 25.0).newSession();
+    }
+
+    @Benchmark
+    public Status authorTour() {
+        controller.startNewTour("T" + tours++, "Benchmark tour", Annotation.DEFAULT);
+        for (int i = 0; i < waypoints; i++) {
+            controller.addLeg(leg);
+            controller.setLocation(0, i * 30.0);
+            controller.addWaypoint(stop);
+        }
+        return controller.endNewTour();
+    }
+}
@@ -0,0 +1,49 @@
+package tourguide.bench;
+
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Sets up the tourguide logger for a benchmark run. Published records are formatted as the console
+ * handler would, but not written anywhere, so benchmarks measure logging cost without terminal I/O.
+ */
+public final class BenchmarkLogging {
+
+    private static final Handler DISCARD = new Handler() {
+        private long sink;
+
+        @Override
+        public void publish(LogRecord record) {
+            if (isLoggable(record)) {
+                sink += getFormatter().format(record).length();
+            }
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    };
+
+    static {
+        DISCARD.setFormatter(new SimpleFormatter());
+        DISCARD.setLevel(Level.ALL);
+    }
+
+    private BenchmarkLogging() {}
+
+    /**
+     * @param level The name of a java.util.logging level, e.g. OFF, INFO or FINER.
+     */
+    public static void configure(String level) {
+        Logger logger = Logger.getLogger("tourguide");
+        logger.setLevel(Level.parse(level));
+        logger.setUseParentHandlers(false);
+        logger.removeHandler(DISCARD);
+        logger.addHandler(DISCARD);
+    }
+}
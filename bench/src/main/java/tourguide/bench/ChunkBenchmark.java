@@ -0,0 +1,109 @@
+package tourguide.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tourguide.Annotation;
+import tourguide.Chunk;
+import tourguide.Utf8Sink;
+
+/**
+ * Cost of turning chunks into display text, through toString and through rendering into reused
+ * buffers. Run with -prof gc to see that rendering allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkBenchmark {
+
+    private final CharBuffer chars = CharBuffer.allocate(4096);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(4096);
+    private final Utf8Sink sink = new Utf8Sink(bytes);
+
+    private Chunk followHeader, followWaypoint, followLeg, followBearing, createHeader, browseOverview;
+
+    @Setup
+    public void setup() {
+        followHeader = new Chunk.FollowHeader("Old Town", 3, 12);
+        followWaypoint = new Chunk.FollowWaypoint(new Annotation("Edinburgh Castle"));
+        followLeg = new Chunk.FollowLeg(new Annotation("Royal Mile"));
+        followBearing = new Chunk.FollowBearing(79.4, 1520.2);
+        createHeader = new Chunk.CreateHeader("Old Town", 4, 3);
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+        for (int i = 0; i < 20; i++) {
+            overview.addIdAndTitle("T" + i, "Tour number " + i);
+        }
+        browseOverview = overview;
+    }
+
+    @Benchmark
+    public String followHeader() {
+        return followHeader.toString();
+    }
+
+    @Benchmark
+    public String followWaypoint() {
+        return followWaypoint.toString();
+    }
+
+    @Benchmark
+    public String followLeg() {
+        return followLeg.toString();
+    }
+
+    @Benchmark
+    public String followBearing() {
+        return followBearing.toString();
+    }
+
+    @Benchmark
+    public String createHeader() {
+        return createHeader.toString();
+    }
+
+    @Benchmark
+    public String browseOverview() {
+        return browseOverview.toString();
+    }
+
+    @Benchmark
+    public CharBuffer renderFollowToCharBuffer() throws IOException {
+        chars.clear();
+        followHeader.render(chars);
+        followLeg.render(chars);
+        followBearing.render(chars);
+        return chars;
+    }
+
+    @Benchmark
+    public ByteBuffer renderFollowToUtf8() throws IOException {
+        bytes.clear();
+        followHeader.render(sink);
+        followLeg.render(sink);
+        followBearing.render(sink);
+        return bytes;
+    }
+
+    @Benchmark
+    public ByteBuffer renderOverviewToUtf8() throws IOException {
+        bytes.clear();
+        browseOverview.render(sink);
+        return bytes;
+    }
+}
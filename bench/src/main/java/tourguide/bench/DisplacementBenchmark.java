@@ -0,0 +1,64 @@
+package tourguide.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tourguide.Displacement;
+
+/**
+ * Cost of Displacement distance and bearing calculations, exact and fast.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisplacementBenchmark {
+
+    @Param({"OFF", "FINER"})
+    public String logLevel;
+
+    private double east = 123.4, north = -567.8;
+
+    @Setup
+    public void setup() {
+        BenchmarkLogging.configure(logLevel);
+    }
+
+    @Benchmark
+    public double distance() {
+        return new Displacement(east, north).distance();
+    }
+
+    @Benchmark
+    public double bearing() {
+        return new Displacement(east, north).bearing();
+    }
+
+    @Benchmark
+    public double staticDistance() {
+        return Displacement.distance(east, north);
+    }
+
+    @Benchmark
+    public double staticBearing() {
+        return Displacement.bearing(east, north);
+    }
+
+    @Benchmark
+    public double fastBearing() {
+        return Displacement.fastBearing(east, north);
+    }
+}
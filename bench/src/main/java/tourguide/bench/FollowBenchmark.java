@@ -0,0 +1,102 @@
+package tourguide.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tourguide.Annotation;
+import tourguide.Chunk;
+import tourguide.Controller;
+import tourguide.ControllerMetrics;
+import tourguide.TourCatalog;
+
+/**
+ * Per-fix cost of FOLLOW mode. The follower wanders near, but never reaches, the next waypoint,
+ * so every fix does the full arrival check without changing the stage.
+ *
+ * Run with -jvmArgs -Dtourguide.hotPathLogging=false to compare against hot path logging compiled out,
+ * and -p metrics=true to measure the cost of ControllerMetrics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FollowBenchmark {
+
+    static final int WAYPOINTS = 1000;
+    static final int TRACE_LENGTH = 1024;
+
+    @Param({"OFF", "INFO", "FINER"})
+    public String logLevel;
+
+    @Param({"false"})
+    public boolean metrics;
+
+    private Controller controller;
+    private int fix;
+    private final double[] traceEast = new double[TRACE_LENGTH];
+    private final double[] traceNorth = new double[TRACE_LENGTH];
+
+    @Setup
+    public void setup() {
+        BenchmarkLogging.configure("OFF");
+        TourCatalog catalog = new TourCatalog(10.0, 25.0);
+        if (metrics) {
+            ControllerMetrics.attach(catalog);
+        }
+        controller = catalog.newSession();
+        controller.startNewTour("B", "benchmark", Annotation.DEFAULT);
+        for (int i = 0; i < WAYPOINTS; i++) {
+            controller.setLocation(0, i * 25.0);
+            controller.addWaypoint(Annotation.DEFAULT);
+        }
+        controller.endNewTour();
+        controller.followTour("B");
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            traceEast[i] = 100.0 + (i & 63);
+            traceNorth[i] = i & 127;
+        }
+        BenchmarkLogging.configure(logLevel);
+    }
+
+    private void nextFix() {
+        fix++;
+        controller.setLocation(100.0 + (fix & 63), fix & 127);
+    }
+
+    @Benchmark
+    public void setLocation() {
+        nextFix();
+    }
+
+    @Benchmark
+    public List<Chunk> setLocationAndGetOutput() {
+        nextFix();
+        return controller.getOutput();
+    }
+
+    @Benchmark
+    public List<Chunk> unchangedGetOutput() {
+        return controller.getOutput();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACE_LENGTH)
+    public Object setLocationsPerFix() {
+        return controller.setLocations(traceEast, traceNorth);
+    }
+}
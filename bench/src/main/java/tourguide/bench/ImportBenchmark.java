@@ -0,0 +1,71 @@
+package tourguide.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tourguide.Status;
+import tourguide.TourCatalog;
+import tourguide.TourImporter;
+
+/**
+ * Time to bulk import a feed of tours into an empty catalog, by parallelism of the parsing pool.
+ * Compare with AuthoringBenchmark for the cost of the same tours through the Controller protocol.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImportBenchmark {
+
+    @Param({"10000"})
+    public int tours;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private String feed;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        BenchmarkLogging.configure("OFF");
+        StringBuilder sb = new StringBuilder();
+        for (int t = 0; t < tours; t++) {
+            sb.append("TOUR,T").append(t).append(",Benchmark tour,\n");
+            for (int i = 0; i < 10; i++) {
+                sb.append("LEG,Follow the path\n");
+                sb.append("WAYPOINT,").append(t * 10).append(',').append(i * 30).append(",Look around\n");
+            }
+            sb.append("END\n");
+        }
+        feed = sb.toString();
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Status importFeed() throws IOException {
+        return new TourImporter(new TourCatalog(10.0, 25.0), pool).importTours(new StringReader(feed));
+    }
+}
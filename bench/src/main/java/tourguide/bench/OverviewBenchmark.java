@@ -0,0 +1,84 @@
+package tourguide.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tourguide.Annotation;
+import tourguide.Chunk;
+import tourguide.Controller;
+import tourguide.Tour;
+import tourguide.TourCatalog;
+import tourguide.Waypoint;
+
+/**
+ * Cost of rendering the BROWSE overview against catalogs of increasing size. Each invocation
+ * re-selects the overview so the cached output is rebuilt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class OverviewBenchmark {
+
+    static final int PAGE_SIZE = 20;
+
+    @Param({"100", "10000", "1000000"})
+    public int tours;
+
+    @Param({"OFF", "INFO"})
+    public String logLevel;
+
+    private Controller controller;
+    private String middleId;
+
+    @Setup
+    public void setup() {
+        BenchmarkLogging.configure("OFF");
+        TourCatalog catalog = new TourCatalog(10.0, 25.0);
+        for (int i = 0; i < tours; i++) {
+            catalog.add(tour(i));
+        }
+        middleId = String.format("T%07d", tours / 2);
+        controller = catalog.newSession();
+        BenchmarkLogging.configure(logLevel);
+    }
+
+    static Tour tour(int i) {
+        Tour tour = new Tour(String.format("T%07d", i), "Tour number " + i, Annotation.DEFAULT);
+        tour.waypoints.add(new Waypoint((i % 1000) * 100.0, (i / 1000) * 100.0, Annotation.DEFAULT));
+        tour.legAnnotations.add(Annotation.DEFAULT);
+        return tour;
+    }
+
+    @Benchmark
+    public List<Chunk> fullOverview() {
+        controller.showToursOverview();
+        return controller.getOutput();
+    }
+
+    @Benchmark
+    public List<Chunk> firstPage() {
+        controller.showToursOverview(null, PAGE_SIZE);
+        return controller.getOutput();
+    }
+
+    @Benchmark
+    public List<Chunk> middlePage() {
+        controller.showToursOverview(middleId, PAGE_SIZE);
+        return controller.getOutput();
+    }
+}
@@ -0,0 +1,79 @@
+package tourguide.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tourguide.Annotation;
+import tourguide.Chunk;
+import tourguide.Controller;
+import tourguide.Tour;
+import tourguide.TourCatalog;
+import tourguide.Waypoint;
+
+/**
+ * Cost of a page of search results against catalogs of increasing size. Titles and annotations
+ * draw from a vocabulary of 10000 words, so a word matches about one tour in 3000, while "tour"
+ * matches every tour. Each invocation re-runs the search so the cached output is rebuilt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+
+    static final int PAGE_SIZE = 20;
+    static final int WORDS = 10000;
+
+    @Param({"10000", "1000000"})
+    public int tours;
+
+    @Param({"w4321", "w43*", "tour w4321", "tour"})
+    public String query;
+
+    private Controller controller;
+
+    @Setup
+    public void setup() {
+        BenchmarkLogging.configure("OFF");
+        TourCatalog catalog = new TourCatalog(10.0, 25.0);
+        List<Tour> batch = new ArrayList<>();
+        for (int i = 0; i < tours; i++) {
+            batch.add(tour(i));
+            if (batch.size() == 10000) {
+                catalog.addAll(batch);
+                batch.clear();
+            }
+        }
+        catalog.addAll(batch);
+        controller = catalog.newSession();
+    }
+
+    static Tour tour(int i) {
+        String title = "Tour of w" + (i * 7 % WORDS) + " and w" + (i * 13 % WORDS);
+        Tour tour = new Tour(String.format("T%07d", i), title, Annotation.of("w" + (i * 31 % WORDS)));
+        tour.waypoints.add(new Waypoint((i % 1000) * 100.0, (i / 1000) * 100.0, Annotation.DEFAULT));
+        tour.legAnnotations.add(Annotation.DEFAULT);
+        return tour;
+    }
+
+    @Benchmark
+    public List<Chunk> searchPage() {
+        controller.searchTours(query, null, PAGE_SIZE);
+        return controller.getOutput();
+    }
+}
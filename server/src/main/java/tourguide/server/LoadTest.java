@@ -0,0 +1,178 @@
+package tourguide.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tourguide.LatencyHistogram;
+
+/**
+ * Opens many connections to a {@link TourServer} and has each one follow a tour over and over,
+ * then reports the latency of each operation.
+ *
+ * Arguments: host port connections seconds
+ *
+ * Each connection needs a file descriptor at both ends, so raise the open file limit
+ * (ulimit -n) above twice the number of connections when client and server share a machine.
+ */
+public class LoadTest {
+
+    private static final String TOUR_ID = "LOADTEST";
+    private static final int WAYPOINTS = 10;
+    private static final double SPACING = 100.0;
+
+    private enum Op {FOLLOW, LOCATION, OUTPUT, ENDFOLLOW}
+
+    private final String host;
+    private final int port;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private LoadTest(String host, int port) {
+        this.host = host;
+        this.port = port;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        new LoadTest(host, port).run(connections, seconds);
+    }
+
+    private void run(int connections, int seconds) throws Exception {
+        createTour();
+
+        ExecutorService clients = ThreadPerTask.newExecutor("tourguide-loadtest");
+        CountDownLatch ready = new CountDownLatch(connections);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(connections);
+        long[] deadline = new long[1];
+        for (int i = 0; i < connections; i++) {
+            clients.execute(() -> {
+                try {
+                    client(ready, start, deadline);
+                } catch (IOException | InterruptedException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        ready.await();
+        System.out.printf("%d connections open, %d failed%n", connected.get(), failed.get());
+        deadline[0] = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        finished.await();
+        clients.shutdown();
+
+        System.out.printf("%-10s %12s %10s %10s %10s %10s %10s%n",
+                "op", "count", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (Op op : Op.values()) {
+            LatencyHistogram histogram = latencies[op.ordinal()];
+            long count = histogram.count();
+            System.out.printf("%-10s %12d %10d %10.1f %10.1f %10.1f %10.1f%n",
+                    op, count, count / seconds,
+                    histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+                    histogram.percentile(99.9) / 1e3, histogram.percentile(100) / 1e3);
+        }
+        System.out.printf("%d connections failed%n", failed.get());
+    }
+
+    /**
+     * Authors the tour that the clients follow, a straight line of waypoints heading east.
+     */
+    private void createTour() throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            Connection connection = new Connection(socket);
+            connection.call(Protocol.request("START", TOUR_ID, "Load test", "Walk east"));
+            for (int i = 0; i < WAYPOINTS; i++) {
+                connection.call(Protocol.request("LOCATION", i * SPACING, 0.0));
+                connection.call(Protocol.request("WAYPOINT", "Waypoint " + i));
+            }
+            List<String> response = connection.call(Protocol.request("END"));
+            if (!response.get(0).equals("OK")) {
+                throw new IOException("Can't create the load test tour: " + response);
+            }
+        }
+    }
+
+    private void client(CountDownLatch ready, CountDownLatch start, long[] deadline)
+            throws IOException, InterruptedException {
+        Socket connectedSocket;
+        try {
+            connectedSocket = connect();
+            connected.incrementAndGet();
+        } finally {
+            ready.countDown();
+        }
+        try (Socket socket = connectedSocket) {
+            Connection connection = new Connection(socket);
+            start.await();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline[0]) {
+                timed(Op.FOLLOW, connection, Protocol.request("FOLLOW", TOUR_ID));
+                for (int i = 0; i < WAYPOINTS; i++) {
+                    double east = i * SPACING + random.nextDouble(-5.0, 5.0);
+                    double north = random.nextDouble(-5.0, 5.0);
+                    timed(Op.LOCATION, connection, Protocol.request("LOCATION", east, north));
+                    timed(Op.OUTPUT, connection, Protocol.request("OUTPUT"));
+                }
+                timed(Op.ENDFOLLOW, connection, Protocol.request("ENDFOLLOW"));
+            }
+        }
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        // The accept backlog can overflow while every client connects at once.
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 10) throw e;
+                Thread.sleep(100L * attempt);
+            }
+        }
+    }
+
+    private void timed(Op op, Connection connection, String request) throws IOException {
+        long startTime = System.nanoTime();
+        connection.call(request);
+        latencies[op.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    private static final class Connection {
+        private final BufferedReader in;
+        private final Writer out;
+
+        Connection(Socket socket) throws IOException {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        List<String> call(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            return Protocol.readResponse(in);
+        }
+    }
+}
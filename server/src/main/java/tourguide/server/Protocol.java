@@ -0,0 +1,217 @@
+package tourguide.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tourguide.Annotation;
+import tourguide.Chunk;
+import tourguide.Controller;
+import tourguide.Log;
+import tourguide.Status;
+
+/**
+ * The line protocol spoken by {@link TourServer}.
+ *
+ * Each request is one line: a command followed by its arguments, separated by tabs. Each response
+ * starts with one line, "OK", "ERROR" and a message, or "OUTPUT" and a chunk count followed by that
+ * many lines, one per chunk. In arguments, messages and chunks, backslash, tab, newline and
+ * carriage return are escaped as \\, \t, \n and \r, since readLine ends a line at either of the last two.
+ * <pre>
+ *   START id title annotation    WAYPOINT annotation    LEG annotation    END
+ *   OVERVIEW [afterId limit]     DETAILS id             NEAREST count     WITHIN radius
+ *   SEARCH query [afterId limit] FOLLOW id                    ENDFOLLOW
+ *   LOCATION east north          OUTPUT
+ * </pre>
+ */
+public final class Protocol {
+
+    private static final Logger logger = Log.LOGGER;
+
+    private Protocol() {}
+
+    /**
+     * Carries out one request on a session and writes the response.
+     * @param session The session of the connection.
+     * @param request The request line.
+     * @param out Where to write the response.
+     * @param scratch A buffer for rendering chunks, reused between requests.
+     * @throws IOException If the response can't be written.
+     */
+    public static void handle(Controller session, String request, Writer out, StringBuilder scratch) throws IOException {
+        String[] args = split(request);
+        Status status;
+        try {
+            switch (args[0]) {
+                case "START":
+                    status = session.startNewTour(arg(args, 1), arg(args, 2), new Annotation(arg(args, 3)));
+                    break;
+                case "WAYPOINT":
+                    status = session.addWaypoint(new Annotation(arg(args, 1)));
+                    break;
+                case "LEG":
+                    status = session.addLeg(new Annotation(arg(args, 1)));
+                    break;
+                case "END":
+                    status = session.endNewTour();
+                    break;
+                case "OVERVIEW":
+                    status = args.length == 1
+                            ? session.showToursOverview()
+                            : session.showToursOverview(nullIfEmpty(arg(args, 1)), Integer.parseInt(arg(args, 2)));
+                    break;
+                case "DETAILS":
+                    status = session.showTourDetails(arg(args, 1));
+                    break;
+                case "NEAREST":
+                    status = session.showNearestTours(Integer.parseInt(arg(args, 1)));
+                    break;
+                case "WITHIN":
+                    status = session.showToursWithin(Double.parseDouble(arg(args, 1)));
+                    break;
+                case "SEARCH":
+                    status = args.length == 2
+                            ? session.searchTours(arg(args, 1))
+                            : session.searchTours(arg(args, 1), nullIfEmpty(arg(args, 2)), Integer.parseInt(arg(args, 3)));
+                    break;
+                case "FOLLOW":
+                    status = session.followTour(arg(args, 1));
+                    break;
+                case "ENDFOLLOW":
+                    status = session.endSelectedTour();
+                    break;
+                case "LOCATION":
+                    session.setLocation(Double.parseDouble(arg(args, 1)), Double.parseDouble(arg(args, 2)));
+                    status = Status.OK;
+                    break;
+                case "OUTPUT":
+                    writeOutput(session.getOutput(), out, scratch);
+                    return;
+                default:
+                    status = new Status.Error("ERROR: Unknown command " + args[0] + ".");
+            }
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException.
+            status = new Status.Error("ERROR: Bad request: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // A failure in one request mustn't take down the connection.
+            logger.log(Level.WARNING, "Request failed: " + args[0], e);
+            status = new Status.Error("ERROR: Request failed: " + e);
+        }
+        writeStatus(status, out);
+    }
+
+    private static void writeStatus(Status status, Writer out) throws IOException {
+        if (status instanceof Status.Error) {
+            out.write("ERROR\t");
+            escape(((Status.Error) status).getMessage(), out);
+            out.write('\n');
+        } else {
+            out.write("OK\n");
+        }
+    }
+
+    private static void writeOutput(List<Chunk> chunks, Writer out, StringBuilder scratch) throws IOException {
+        out.write("OUTPUT\t");
+        out.write(Integer.toString(chunks.size()));
+        out.write('\n');
+        for (Chunk chunk : chunks) {
+            scratch.setLength(0);
+            chunk.render(scratch);
+            escape(scratch, out);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Reads one response, as written by {@link #handle}.
+     * @param in The connection.
+     * @return The unescaped lines of the response after the first, prefixed by the first line's
+     *         fields: "OK", "ERROR" and the message, or "OUTPUT" and the chunk count.
+     * @throws IOException If the connection fails or closes.
+     */
+    public static List<String> readResponse(BufferedReader in) throws IOException {
+        String[] first = split(readLine(in));
+        List<String> response = new ArrayList<>(List.of(first));
+        if (first[0].equals("OUTPUT")) {
+            int chunks = Integer.parseInt(first[1]);
+            for (int i = 0; i < chunks; i++) {
+                response.add(unescape(readLine(in)));
+            }
+        }
+        return response;
+    }
+
+    private static String readLine(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        if (line == null) throw new IOException("Connection closed");
+        return line;
+    }
+
+    /**
+     * Builds a request line from a command and its arguments.
+     */
+    public static String request(String command, Object... args) {
+        StringBuilder sb = new StringBuilder(command);
+        for (Object arg : args) {
+            sb.append('\t');
+            try {
+                escape(arg == null ? "" : arg.toString(), sb);
+            } catch (IOException e) {
+                throw new AssertionError(e); // StringBuilder doesn't throw.
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void escape(CharSequence s, Appendable out) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String[] split(String line) {
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+        }
+        return fields;
+    }
+
+    private static String arg(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[0] + " needs " + i + " argument(s)");
+        }
+        return args[i];
+    }
+
+    private static String nullIfEmpty(String s) {
+        return s.isEmpty() ? null : s;
+    }
+}
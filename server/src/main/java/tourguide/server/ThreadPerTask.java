@@ -0,0 +1,46 @@
+package tourguide.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import tourguide.Log;
+
+/**
+ * Starts a new thread for every task, so blocking code can be written one thread per connection.
+ *
+ * On a JVM with virtual threads (Java 21 and later) the threads are virtual, so tens of thousands of
+ * connections cost little more than their sockets. On older JVMs they are daemon platform threads with
+ * a small stack, which scale to a few tens of thousands given enough memory and a high enough
+ * thread limit.
+ */
+final class ThreadPerTask {
+    private static final Logger logger = Log.LOGGER;
+
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private ThreadPerTask() {}
+
+    /**
+     * @param name The name prefix of the platform threads, if virtual threads are not available.
+     * @return An executor that runs each task on a new thread.
+     */
+    static ExecutorService newExecutor(String name) {
+        try {
+            // Looked up reflectively so the module still builds and runs on Java 17.
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            logger.info("USING VIRTUAL THREADS");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.info("USING PLATFORM THREADS: virtual threads need Java 21");
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(null, task, name + "-" + count.incrementAndGet(), PLATFORM_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package tourguide.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tourguide.AsyncLogHandler;
+import tourguide.CatalogFile;
+import tourguide.Controller;
+import tourguide.Log;
+import tourguide.TourCatalog;
+
+/**
+ * Serves the {@link Protocol} over TCP, so devices can share one catalog without embedding a controller.
+ * Every connection gets its own thread (virtual where available) and its own controller session,
+ * so the sessions keep their one-thread-at-a-time rule without any locking here.
+ */
+public class TourServer implements Closeable {
+    private static final Logger logger = Log.LOGGER;
+
+    private final TourCatalog catalog;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = ThreadPerTask.newExecutor("tourguide-connection");
+    private final AtomicInteger open = new AtomicInteger();
+
+    /**
+     * Starts listening and accepting connections.
+     * @param catalog The catalog that the sessions of all connections share.
+     * @param port The port to listen on, or 0 for any free port.
+     * @param backlog The number of connections that may wait to be accepted.
+     * @throws IOException If the port can't be bound.
+     */
+    public TourServer(TourCatalog catalog, int port, int backlog) throws IOException {
+        this.catalog = catalog;
+        serverSocket = new ServerSocket(port, backlog, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptConnections, "tourguide-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info(() -> "SERVER LISTENING: " + serverSocket.getLocalSocketAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The number of connections currently open.
+     */
+    public int openConnections() {
+        return open.get();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // Closed.
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Accept failed", e);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        open.incrementAndGet();
+        Controller session = catalog.newSession();
+        StringBuilder scratch = new StringBuilder();
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            String request;
+            while ((request = in.readLine()) != null) {
+                Protocol.handle(session, request, out, scratch);
+                // Pipelined requests are answered together.
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            logger.fine(() -> "CONNECTION FAILED: " + e);
+        } finally {
+            session.close();
+            open.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * Runs a server until killed.
+     * Arguments: port [catalogFile [waypointRadius waypointSeparation]]
+     * Sessions log every operation at INFO, so the log level defaults to WARNING;
+     * set it with -Dtourguide.logLevel.
+     */
+    public static void main(String[] args) throws Exception {
+        Level level = Level.parse(System.getProperty("tourguide.logLevel", "WARNING"));
+        Log.LOGGER.setLevel(level);
+        // Connection threads must not wait on console output.
+        AsyncLogHandler.install(System.err, AsyncLogHandler.DEFAULT_CAPACITY);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        double radius = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        double separation = args.length > 3 ? Double.parseDouble(args[3]) : 25.0;
+        TourCatalog catalog = new TourCatalog(radius, separation);
+        if (args.length > 1) {
+            CatalogFile.load(Paths.get(args[1]), catalog);
+        }
+        TourServer server = new TourServer(catalog, port, 65535);
+        System.out.println("Listening on port " + server.getPort());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,102 @@
+package tourguide.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import tourguide.Annotation;
+import tourguide.Chunk;
+import tourguide.Controller;
+import tourguide.TourCatalog;
+
+public class ProtocolTest {
+
+    private static final double WAYPOINT_RADIUS = 10.0;
+    private static final double WAYPOINT_SEPARATION = 25.0;
+
+    private Controller session;
+    private final StringBuilder scratch = new StringBuilder();
+
+    @Before
+    public void setup() {
+        session = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION).newSession();
+    }
+
+    private List<String> send(String command, Object... args) throws IOException {
+        return send(session, Protocol.request(command, args));
+    }
+
+    private List<String> send(Controller session, String request) throws IOException {
+        StringWriter out = new StringWriter();
+        Protocol.handle(session, request, out, scratch);
+        BufferedReader in = new BufferedReader(new StringReader(out.toString()));
+        List<String> response = Protocol.readResponse(in);
+        Assert.assertNull("Response has extra lines", in.readLine());
+        return response;
+    }
+
+    private static String render(Chunk chunk) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        chunk.render(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Tests that a tour authored through requests can be browsed, with its output rendered one
+     * chunk per line.
+     */
+    @Test
+    public void authorAndBrowse() throws IOException {
+        Assert.assertEquals(List.of("OK"), send("START", "T1", "Old Town", "From the castle"));
+        Assert.assertEquals(List.of("OK"), send("LOCATION", -500.0, 0.0));
+        Assert.assertEquals(List.of("OK"), send("WAYPOINT", "Castle"));
+        Assert.assertEquals(List.of("OUTPUT", "1", render(new Chunk.CreateHeader("Old Town", 1, 1))),
+                send("OUTPUT"));
+        Assert.assertEquals(List.of("OK"), send("END"));
+
+        Assert.assertEquals(List.of("OK"), send("DETAILS", "T1"));
+        Assert.assertEquals(List.of("OUTPUT", "1",
+                render(new Chunk.BrowseDetails("T1", "Old Town", new Annotation("From the castle")))),
+                send("OUTPUT"));
+        Assert.assertEquals(List.of("OK"), send("OVERVIEW", "", 10));
+    }
+
+    /**
+     * Tests that the characters used to frame requests and responses survive a round trip.
+     */
+    @Test
+    public void escaping() throws IOException {
+        String awkward = "back\\slash\ttab\nnewline\rreturn\r\nboth \\n";
+        Assert.assertEquals(List.of("OK"), send("START", "T2", awkward, awkward));
+        Assert.assertEquals(List.of("OUTPUT", "1", render(new Chunk.CreateHeader(awkward, 0, 0))),
+                send("OUTPUT"));
+    }
+
+    /**
+     * Tests that bad requests, refused operations and failures in the session are all answered
+     * with an error line, leaving the connection in step.
+     */
+    @Test
+    public void errors() throws IOException {
+        Assert.assertEquals("ERROR", send("FROB").get(0));
+        Assert.assertTrue(send("NEAREST", "many").get(1).contains("Bad request"));
+        Assert.assertTrue(send("DETAILS").get(1).contains("Bad request"));
+        Assert.assertEquals("ERROR", send("FOLLOW", "T9").get(0));
+
+        Controller failing = (Controller) Proxy.newProxyInstance(Controller.class.getClassLoader(),
+                new Class<?>[]{Controller.class}, (proxy, method, args) -> {
+                    throw new IllegalStateException("broken session");
+                });
+        List<String> response = send(failing, Protocol.request("ENDFOLLOW"));
+        Assert.assertEquals("ERROR", response.get(0));
+        Assert.assertTrue(response.get(1), response.get(1).contains("Request failed"));
+        Assert.assertTrue(response.get(1), response.get(1).contains("broken session"));
+    }
+}
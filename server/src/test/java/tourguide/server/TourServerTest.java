@@ -0,0 +1,81 @@
+package tourguide.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tourguide.Chunk;
+import tourguide.TourCatalog;
+
+public class TourServerTest {
+
+    private static String render(Chunk chunk) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        chunk.render(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Tests a session over a real loopback connection: a tour authored on one connection can be
+     * followed from another, pipelined requests are answered in order, and closing a connection
+     * ends its session.
+     */
+    @Test
+    public void loopbackSessions() throws Exception {
+        TourCatalog catalog = new TourCatalog(10.0, 25.0);
+        try (TourServer server = new TourServer(catalog, 0, 50)) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                // Pipelined: every request is sent before any response is read.
+                out.write(Protocol.request("START", "T1", "Line\r\nbreaks", "") + "\n");
+                out.write(Protocol.request("LOCATION", 0.0, 0.0) + "\n");
+                out.write(Protocol.request("WAYPOINT", "First") + "\n");
+                out.write(Protocol.request("LOCATION", 0.0, 100.0) + "\n");
+                out.write(Protocol.request("WAYPOINT", "Second") + "\n");
+                out.write(Protocol.request("OUTPUT") + "\n");
+                out.write(Protocol.request("END") + "\n");
+                out.write(Protocol.request("NEAREST", "lots") + "\n");
+                out.flush();
+                for (int i = 0; i < 5; i++) {
+                    Assert.assertEquals(List.of("OK"), Protocol.readResponse(in));
+                }
+                Assert.assertEquals(List.of("OUTPUT", "1", render(new Chunk.CreateHeader("Line\r\nbreaks", 2, 2))),
+                        Protocol.readResponse(in));
+                Assert.assertEquals(List.of("OK"), Protocol.readResponse(in));
+                Assert.assertEquals("ERROR", Protocol.readResponse(in).get(0));
+            }
+            Assert.assertEquals(1, catalog.size());
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                out.write(Protocol.request("FOLLOW", "T1") + "\n");
+                out.write(Protocol.request("LOCATION", 0.0, 5.0) + "\n");
+                out.write(Protocol.request("OUTPUT") + "\n");
+                out.flush();
+                Assert.assertEquals(List.of("OK"), Protocol.readResponse(in));
+                Assert.assertEquals(List.of("OK"), Protocol.readResponse(in));
+                List<String> output = Protocol.readResponse(in);
+                Assert.assertEquals("OUTPUT", output.get(0));
+                Assert.assertEquals(render(new Chunk.FollowHeader("Line\r\nbreaks", 1, 2)), output.get(2));
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.openConnections() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, server.openConnections());
+        }
+    }
+}
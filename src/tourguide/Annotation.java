@@ -3,36 +3,86 @@
  */
 package tourguide;
 
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 /**
  * @author pbj
  *
+ * Annotations are compared by text. Tours store interned annotations, obtained from {@link #of}
+ * or {@link #intern}, so each distinct text is held once however many tours repeat it.
  */
 public class Annotation {
-    private String text;
+    // Canonical annotation for each text, keyed by the annotation's own text so an entry goes
+    // once no tour holds its annotation. Guarded by its own lock.
+    private static final Map<String, WeakReference<Annotation>> POOL = new WeakHashMap<>();
+
+    private final String text;
+
+    // Whether this is the canonical annotation for its text.
+    private final boolean interned;
     
-    public static final Annotation DEFAULT = getDefault();
+    public static final Annotation DEFAULT = of("DEFAULT");
     
     public String toString() { return text; }
     
-    public Annotation(String s) { text = s; }
+    public Annotation(String s) { this(s, false); }
+
+    private Annotation(String text, boolean interned) {
+        this.text = text;
+        this.interned = interned;
+    }
     
+    /**
+     * @param text The text of the annotation.
+     * @return The canonical annotation with that text.
+     */
+    public static Annotation of(String text) {
+        synchronized (POOL) {
+            WeakReference<Annotation> pooled = POOL.get(text);
+            Annotation canonical = pooled == null ? null : pooled.get();
+            if (canonical == null) {
+                canonical = new Annotation(text, true);
+                POOL.put(canonical.text, new WeakReference<>(canonical));
+            }
+            return canonical;
+        }
+    }
+
+    /**
+     * @param annotation An annotation, may be null.
+     * @return The canonical annotation with the same text, or null.
+     */
+    public static Annotation intern(Annotation annotation) {
+        if (annotation == null || annotation.interned) return annotation;
+        return of(annotation.text);
+    }
+
     /*
      * Introduce a default Annotation object for when have no annotation. 
      * 
      * Seems cleaner than relying on null reference value for no annotation.
      */
     public static Annotation getDefault() {
-        return new Annotation("DEFAULT");
+        return DEFAULT;
     }
     
     public boolean isDefault() {
-        return text.equals("DEFAULT");
+        // No other canonical annotation can have the default text.
+        return this == DEFAULT || (!interned && text.equals(DEFAULT.text));
     }
     
     public boolean equals(Object o) {
+        if (this == o) return true;
         if (!(o instanceof Annotation)) return false;
         Annotation oA = (Annotation) o;
         return text.equals(oA.text);
     }
+
+    @Override
+    public int hashCode() {
+        return text.hashCode();
+    }
     
 }
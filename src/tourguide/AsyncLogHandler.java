@@ -0,0 +1,282 @@
+package tourguide;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * A log handler that never makes the logging thread wait for formatting or I/O.
+ *
+ * Records are put in a fixed-size lock-free ring buffer and written by a background thread as JSON
+ * lines: {"time":millis,"level":"INFO","thread":id,"message":"...","thrown":"..."}. When the buffer is
+ * full, records are dropped rather than blocking, and counted in {@link #getDroppedCount()}.
+ *
+ * Install with {@link #install} or in logging.properties, where the properties
+ * tourguide.AsyncLogHandler.file (default: standard error) and tourguide.AsyncLogHandler.capacity
+ * (default 8192) configure it.
+ */
+public class AsyncLogHandler extends Handler {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    // An idle writer is woken by publish, flush and close; this only bounds a missed wake-up.
+    private static final long IDLE_PARK_MILLIS = 100;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MILLIS);
+
+    // Bounded multi-producer queue after Vyukov: slot i may be written for position p when
+    // sequences[i] == p, and read when sequences[i] == p + 1.
+    private final LogRecord[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean idle; // Set by the writer while it is, or is about to be, parked.
+
+    // flush waits on flushLock until the writer has flushed the records up to its target.
+    private final AtomicLong flushRequested = new AtomicLong();
+    private volatile long flushed; // Only advanced by the writer.
+    private final Object flushLock = new Object();
+
+    private final LongAdder dropped = new LongAdder();
+    private final Writer out;
+    private final boolean closeOut;
+    private final Thread writer;
+    private final SimpleFormatter messageFormatter = new SimpleFormatter();
+    private final StringBuilder line = new StringBuilder(256);
+    private volatile boolean closed;
+
+    /**
+     * Creates a handler configured from the LogManager properties.
+     */
+    public AsyncLogHandler() throws IOException {
+        this(openConfigured(), configuredCapacity());
+    }
+
+    /**
+     * @param out Where to write the records. Closed when the handler is closed, unless it is
+     *            standard output or standard error.
+     * @param capacity The number of records that may wait to be written, rounded up to a power of two.
+     */
+    public AsyncLogHandler(OutputStream out, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new LogRecord[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        closeOut = out != System.err && out != System.out;
+        writer = new Thread(this::writeRecords, "tourguide-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replaces the handlers of the tourguide logger with an asynchronous one.
+     * @param out Where to write the records.
+     * @param capacity The number of records that may wait to be written.
+     * @return The handler.
+     */
+    public static AsyncLogHandler install(OutputStream out, int capacity) {
+        AsyncLogHandler handler = new AsyncLogHandler(out, capacity);
+        Logger logger = Log.LOGGER;
+        for (Handler old : logger.getHandlers()) {
+            logger.removeHandler(old);
+        }
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        return handler;
+    }
+
+    /**
+     * @return The number of records dropped because the buffer was full or the handler closed.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            if (closed) dropped.increment();
+            return;
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (available < 0) {
+                // The writer hasn't freed this slot since the last lap: the buffer is full.
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        int index = (int) position & mask;
+        slots[index] = record;
+        sequences.set(index, position + 1);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Waits until every record published so far has been written out.
+     */
+    @Override
+    public void flush() {
+        long target = tail.get();
+        if (flushed >= target) {
+            return;
+        }
+        flushRequested.accumulateAndGet(target, Math::max);
+        LockSupport.unpark(writer);
+        synchronized (flushLock) {
+            while (flushed < target && writer.isAlive()) {
+                try {
+                    flushLock.wait(IDLE_PARK_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeRecords() {
+        long position = 0;
+        while (true) {
+            int index = (int) position & mask;
+            if (sequences.get(index) == position + 1) {
+                LogRecord record = slots[index];
+                slots[index] = null;
+                sequences.set(index, position + slots.length);
+                write(record);
+                position++;
+                // Don't keep a flush waiting behind records published after it.
+                long requested = flushRequested.get();
+                if (requested > flushed && position >= requested) {
+                    flushTo(position);
+                }
+            } else {
+                // Caught up: write out the batch before waiting for more.
+                flushTo(position);
+                if (closed && tail.get() == position) break;
+                idle = true;
+                // Publishers check idle after filling a slot, so look once more before parking.
+                if (sequences.get(index) != position + 1 && !closed) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+            }
+        }
+        if (closeOut) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    private void write(LogRecord record) {
+        line.setLength(0);
+        line.append("{\"time\":").append(record.getMillis())
+                .append(",\"level\":\"").append(record.getLevel().getName())
+                .append("\",\"thread\":").append(record.getLongThreadID())
+                .append(",\"message\":");
+        appendJson(messageFormatter.formatMessage(record));
+        Throwable thrown = record.getThrown();
+        if (thrown != null) {
+            line.append(",\"thrown\":");
+            appendJson(thrown.toString());
+        }
+        line.append("}\n");
+        try {
+            out.append(line);
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    private void flushTo(long position) {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.FLUSH_FAILURE);
+        }
+        long previous = flushed;
+        flushed = position;
+        if (flushRequested.get() > previous) {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private void appendJson(String s) {
+        if (s == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': line.append("\\\""); break;
+                case '\\': line.append("\\\\"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                case '\t': line.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+
+    private static OutputStream openConfigured() throws IOException {
+        String file = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".file");
+        return file == null ? System.err : new FileOutputStream(file, true);
+    }
+
+    private static int configuredCapacity() {
+        String capacity = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".capacity");
+        return capacity == null ? DEFAULT_CAPACITY : Integer.parseInt(capacity.trim());
+    }
+}
@@ -0,0 +1,223 @@
+package tourguide;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A compact binary file of finished tours, read through a memory mapping.
+ *
+ * Opening a file only decodes the id and title of each tour. The annotations and waypoints of a tour
+ * are decoded from the mapping the first time the tour is looked up in the catalog.
+ *
+ * Layout (all numbers big-endian, strings as an int byte count followed by UTF-8 bytes, or a count
+ * of -1 alone for a missing title or annotation):
+ * <pre>
+ *   header:  int MAGIC, int tourCount, int indexLength
+ *   index:   tourCount * (string id, string title, int detailsOffset)
+ *   details: per tour: string annotation, int waypointCount,
+ *            waypointCount * (double east, double north, string annotation),
+ *            waypointCount * (string legAnnotation)
+ * </pre>
+ * Detail offsets are relative to the start of the details section. A single mapping is limited to 2GB.
+ *
+ * Files are replaced atomically, so a catalog still mapping the old file is never left reading a
+ * truncated one.
+ */
+public class CatalogFile {
+
+    private static final int MAGIC = 0x54474331; // "TGC1"
+    private static final int HEADER_LENGTH = 12;
+    private static final int ABSENT = -1;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final int detailsStart;
+
+    private CatalogFile(Path path, ByteBuffer buffer, int detailsStart) {
+        this.path = path;
+        this.buffer = buffer;
+        this.detailsStart = detailsStart;
+    }
+
+    /**
+     * Writes tours to a file, replacing any existing file. The tours are written to a temporary
+     * file in the same directory, forced to disk, and then moved over the target in one step.
+     * @param tours The tours to write.
+     * @param path The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    public static void write(Collection<Tour> tours, Path path) throws IOException {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream detailBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        DataOutputStream details = new DataOutputStream(detailBytes);
+        int count = 0;
+        for (Tour tour : tours) {
+            writeString(index, tour.id);
+            writeString(index, tour.title);
+            index.writeInt(details.size());
+
+            writeAnnotation(details, tour.annotation);
+            details.writeInt(tour.waypoints.size());
+            for (Waypoint waypoint : tour.waypoints) {
+                details.writeDouble(waypoint.east);
+                details.writeDouble(waypoint.north);
+                writeAnnotation(details, waypoint.annotation);
+            }
+            for (Annotation leg : tour.legAnnotations) {
+                writeAnnotation(details, leg);
+            }
+            count++;
+        }
+        Path target = path.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                OutputStream out = Channels.newOutputStream(channel);
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(count);
+                header.writeInt(index.size());
+                indexBytes.writeTo(out);
+                detailBytes.writeTo(out);
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(ABSENT);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeAnnotation(DataOutputStream out, Annotation annotation) throws IOException {
+        writeString(out, annotation == null ? null : annotation.toString());
+    }
+
+    /**
+     * Maps a catalog file and adds its tours to a catalog without decoding their details.
+     * @param path The file to read.
+     * @param catalog The catalog to add the tours to.
+     * @return The number of tours added.
+     * @throws IOException If the file can't be read or is not a catalog file.
+     */
+    public static int load(Path path, TourCatalog catalog) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.limit() < HEADER_LENGTH || mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a tour catalog file: " + path);
+        }
+        int count = mapped.getInt(4);
+        int indexLength = mapped.getInt(8);
+        if (count < 0 || indexLength < 0 || indexLength > mapped.limit() - HEADER_LENGTH) {
+            throw corrupt(path, "bad header");
+        }
+        int detailsStart = HEADER_LENGTH + indexLength;
+        CatalogFile file = new CatalogFile(path, mapped, detailsStart);
+
+        ByteBuffer index = mapped.duplicate();
+        index.position(HEADER_LENGTH);
+        index.limit(detailsStart);
+        // Read the whole index before adding anything, so a corrupt file adds no tours.
+        List<Tour> tours = new ArrayList<>(Math.min(count, 1 << 16));
+        try {
+            for (int i = 0; i < count; i++) {
+                String id = readString(index, path);
+                String title = readString(index, path);
+                int offset = index.getInt();
+                if (id == null || offset < 0 || offset >= mapped.limit() - detailsStart) {
+                    throw corrupt(path, "bad index entry " + i);
+                }
+                tours.add(new Tour(id, title, file, offset));
+            }
+        } catch (BufferUnderflowException e) {
+            throw corrupt(path, "index truncated");
+        }
+        for (Tour tour : tours) {
+            catalog.addUnloaded(tour);
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the annotation, waypoints and legs of a tour read from this file. The tour is only
+     * changed once all of them have been read, so a failed decode leaves it as it was.
+     * @param tour A tour created by {@link #load}.
+     * @throws UncheckedIOException If the tour's details are corrupt, since tours are decoded
+     *                              lazily, on lookups that have no way to report an IOException.
+     */
+    void decode(Tour tour) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(detailsStart + tour.sourceOffset);
+        try {
+            Annotation annotation = readAnnotation(in);
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / 24) {
+                throw corrupt(path, "bad waypoint count for tour " + tour.id);
+            }
+            List<Waypoint> waypoints = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                double east = in.getDouble();
+                double north = in.getDouble();
+                waypoints.add(new Waypoint(east, north, readAnnotation(in)));
+            }
+            List<Annotation> legAnnotations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                legAnnotations.add(readAnnotation(in));
+            }
+            tour.annotation = annotation;
+            tour.waypoints = waypoints;
+            tour.legAnnotations = legAnnotations;
+        } catch (BufferUnderflowException e) {
+            throw new UncheckedIOException(corrupt(path, "details of tour " + tour.id + " truncated"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Annotation readAnnotation(ByteBuffer in) throws IOException {
+        String text = readString(in, path);
+        return text == null ? null : Annotation.of(text);
+    }
+
+    private static String readString(ByteBuffer in, Path path) throws IOException {
+        int length = in.getInt();
+        if (length == ABSENT) return null;
+        if (length < 0 || length > in.remaining()) {
+            throw corrupt(path, "bad string length " + length + " at " + (in.position() - 4));
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static IOException corrupt(Path path, String reason) {
+        return new IOException("Corrupt tour catalog file " + path + ": " + reason);
+    }
+}
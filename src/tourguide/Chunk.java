@@ -3,6 +3,8 @@
  */
 package tourguide;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -22,7 +24,67 @@ public class Chunk {
     // error messages when comparing chunks.
     
     private static final double EPS = 1.0;
-    
+
+    /**
+     * Writes the text of this chunk, exactly as {@link #toString()} returns it, straight into out.
+     * Numbers are formatted by hand, so rendering into a CharBuffer, a large enough StringBuilder
+     * or a {@link Utf8Sink} allocates nothing.
+     * @param out Where to write the text.
+     * @throws IOException If out throws.
+     */
+    public void render(Appendable out) throws IOException {
+        out.append(toString());
+    }
+
+    /**
+     * Renders a chunk into a new String, for the toString methods.
+     */
+    static String renderToString(Chunk chunk) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            chunk.render(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a number rounded to a whole number, exactly as String.format("%.0f") does
+     * (round half up, and "-0" for small negative numbers), without allocating.
+     */
+    static void appendRounded(Appendable out, double value) throws IOException {
+        double magnitude = Math.abs(value);
+        if (!(magnitude < 1e15)) {
+            // NaN, infinities and huge values are rare enough to leave to the formatter.
+            out.append(String.format("%.0f", value));
+            return;
+        }
+        if (Double.doubleToRawLongBits(value) < 0) {
+            out.append('-');
+        }
+        appendLong(out, Math.round(magnitude));
+    }
+
+    static void appendInt(Appendable out, int value) throws IOException {
+        if (value < 0) {
+            out.append('-');
+            appendLong(out, -(long) value);
+        } else {
+            appendLong(out, value);
+        }
+    }
+
+    /**
+     * Appends a non-negative integer in decimal without allocating.
+     */
+    static void appendLong(Appendable out, long value) throws IOException {
+        if (value >= 10) {
+            appendLong(out, value / 10);
+        }
+        out.append((char) ('0' + value % 10));
+    }
+
     /*
      * Chunk subclasses for BROWSE mode
      * 
@@ -39,6 +101,10 @@ public class Chunk {
         public String toString() {
             return id + ": " + title + LS;
         }
+
+        public void render(Appendable out) throws IOException {
+            out.append(id).append(": ").append(title).append(LS);
+        }
         
         public boolean equals(Object o) {
             if (!(o instanceof OverviewLine)) return false;
@@ -52,6 +118,11 @@ public class Chunk {
 
         public List<OverviewLine> overviewLines;
 
+        /**
+         * The id to pass as the cursor to fetch the following page, or null if this is the last page.
+         */
+        public String nextCursor;
+
         public BrowseOverview() {
             overviewLines = new ArrayList<OverviewLine>();
         }
@@ -61,19 +132,23 @@ public class Chunk {
         }
  
         public String toString() {
+            return renderToString(this);
+        }
+
+        public void render(Appendable out) throws IOException {
             if (overviewLines.isEmpty()) {
-                return "NO TOURS TO SHOW" + LS;
+                out.append("NO TOURS TO SHOW").append(LS);
+                return;
             }
-            StringBuffer sb = new StringBuffer();
-            for (OverviewLine line : overviewLines) {
-                sb.append(line);
+            for (int i = 0; i < overviewLines.size(); i++) {
+                overviewLines.get(i).render(out);
             }
-            return sb.toString();
         }
         
         public boolean equals(Object o ) {
             if (!(o instanceof BrowseOverview)) return false;
             BrowseOverview oBO = (BrowseOverview) o;
+            if (nextCursor == null ? oBO.nextCursor != null : !nextCursor.equals(oBO.nextCursor)) return false;
             Iterator<OverviewLine> it1 = overviewLines.iterator();
             Iterator<OverviewLine> it2 = oBO.overviewLines.iterator();
             while (it1.hasNext() && it2.hasNext()) {
@@ -83,6 +158,66 @@ public class Chunk {
         }
     }
 
+    public static class NearbyLine {
+        public String id;
+        public String title;
+        public double distance;
+
+        public NearbyLine(String id, String title, double distance) {
+            this.id = id;
+            this.title = title;
+            this.distance = distance;
+        }
+
+        public String toString() {
+            return String.format("%1$s: %2$s (%3$.0fm)%n", id, title, distance);
+        }
+
+        public void render(Appendable out) throws IOException {
+            out.append(id).append(": ").append(title).append(" (");
+            appendRounded(out, distance);
+            out.append("m)").append(LS);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof NearbyLine)) return false;
+            NearbyLine oNL = (NearbyLine) o;
+            return oNL.id.equals(id) && oNL.title.equals(title) && within(distance, oNL.distance, EPS);
+        }
+    }
+
+    public static class NearbyOverview extends Chunk {
+
+        public List<NearbyLine> nearbyLines;
+
+        public NearbyOverview() {
+            nearbyLines = new ArrayList<NearbyLine>();
+        }
+
+        public void addTour(String id, String title, double distance) {
+            nearbyLines.add(new NearbyLine(id, title, distance));
+        }
+
+        public String toString() {
+            return renderToString(this);
+        }
+
+        public void render(Appendable out) throws IOException {
+            if (nearbyLines.isEmpty()) {
+                out.append("NO TOURS NEARBY").append(LS);
+                return;
+            }
+            for (int i = 0; i < nearbyLines.size(); i++) {
+                nearbyLines.get(i).render(out);
+            }
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof NearbyOverview)) return false;
+            return nearbyLines.equals(((NearbyOverview) o).nearbyLines);
+        }
+    }
+
     public static class BrowseDetails extends Chunk {
         public String id;
         public String title;
@@ -96,6 +231,9 @@ public class Chunk {
         public String toString() {
             return id + ": " + title + LS + details.toString();
         }
+        public void render(Appendable out) throws IOException {
+            out.append(id).append(": ").append(title).append(LS).append(details.toString());
+        }
         public boolean equals(Object o) {
             if (!(o instanceof BrowseDetails)) return false;
             BrowseDetails oBD = (BrowseDetails) o;
@@ -119,7 +257,14 @@ public class Chunk {
 	    this.numberWaypoints = numberWaypoints;
         }
         public String toString() {
-            return String.format("%1$s  %2$d/%3$d%n",title, currentStage, numberWaypoints);
+            return renderToString(this);
+        }
+        public void render(Appendable out) throws IOException {
+            out.append(title).append("  ");
+            appendInt(out, currentStage);
+            out.append('/');
+            appendInt(out, numberWaypoints);
+            out.append(LS);
         }
         public boolean equals(Object o) {
             if (!(o instanceof FollowHeader)) return false;
@@ -137,7 +282,10 @@ public class Chunk {
             this.annotation = annotation;
         }
         public String toString() {
-            return String.format("Current waypoint: %n%1$s", annotation);
+            return renderToString(this);
+        }
+        public void render(Appendable out) throws IOException {
+            out.append("Current waypoint: ").append(LS).append(String.valueOf(annotation));
         }
         public boolean equals(Object o) {
             if (!(o instanceof FollowWaypoint)) return false;
@@ -155,8 +303,10 @@ public class Chunk {
             this.annotation = annotation;
         }
         public String toString() {
-            return String.format("Leg to next waypoint:%n%1$s", 
-                    annotation);
+            return renderToString(this);
+        }
+        public void render(Appendable out) throws IOException {
+            out.append("Leg to next waypoint:").append(LS).append(String.valueOf(annotation));
         }
         public boolean equals(Object o) {
             if (!(o instanceof FollowLeg)) return false;
@@ -174,7 +324,14 @@ public class Chunk {
             this.distance = distance;
         }
         public String toString() {
-            return String.format("Next waypoint is on bearing %1$.0f degrees at %2$.0fm %n", bearing, distance);
+            return renderToString(this);
+        }
+        public void render(Appendable out) throws IOException {
+            out.append("Next waypoint is on bearing ");
+            appendRounded(out, bearing);
+            out.append(" degrees at ");
+            appendRounded(out, distance);
+            out.append("m ").append(LS);
         }
         public boolean equals(Object o) {
             if (!(o instanceof FollowBearing)) return false;
@@ -183,6 +340,63 @@ public class Chunk {
                     within(distance, oFB.distance, EPS) ;
         }
     }
+    /**
+     * Progress along the whole tour: distance covered, distance still to go via the remaining
+     * waypoints, and the percentage of the tour's length covered.
+     */
+    public static class FollowProgress extends Chunk {
+        public double done;
+        public double remaining;
+        public double percent;
+
+        public FollowProgress(double done, double remaining, double percent) {
+            this.done = done;
+            this.remaining = remaining;
+            this.percent = percent;
+        }
+        public String toString() {
+            return renderToString(this);
+        }
+        public void render(Appendable out) throws IOException {
+            out.append("Progress: ");
+            appendRounded(out, done);
+            out.append("m done, ");
+            appendRounded(out, remaining);
+            out.append("m to go (");
+            appendRounded(out, percent);
+            out.append("%) ").append(LS);
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof FollowProgress)) return false;
+            FollowProgress oFP = (FollowProgress) o;
+            return within(done, oFP.done, EPS)
+                    && within(remaining, oFP.remaining, EPS)
+                    && within(percent, oFP.percent, EPS);
+        }
+    }
+    /**
+     * Warns that the follower has strayed further from the leg they are on than the catalog's
+     * corridor width allows.
+     */
+    public static class OffRoute extends Chunk {
+        public double corridorWidth;
+
+        public OffRoute(double corridorWidth) {
+            this.corridorWidth = corridorWidth;
+        }
+        public String toString() {
+            return renderToString(this);
+        }
+        public void render(Appendable out) throws IOException {
+            out.append("Off route: more than ");
+            appendRounded(out, corridorWidth);
+            out.append("m from the leg ").append(LS);
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof OffRoute)) return false;
+            return within(corridorWidth, ((OffRoute) o).corridorWidth, EPS);
+        }
+    }
     /*
      * Chunk subclass for CREATE mode
      */
@@ -197,8 +411,14 @@ public class Chunk {
             this.numberWaypoints = numberWaypoints;
         }
         public String toString() {
-            return String.format("New tour: %1$s. #legs: %2$d  #waypoints: %3$d%n", 
-                    title, numberLegs, numberWaypoints);
+            return renderToString(this);
+        }
+        public void render(Appendable out) throws IOException {
+            out.append("New tour: ").append(title).append(". #legs: ");
+            appendInt(out, numberLegs);
+            out.append("  #waypoints: ");
+            appendInt(out, numberWaypoints);
+            out.append(LS);
         }
         public boolean equals(Object o) {
             if (!(o instanceof CreateHeader)) return false;
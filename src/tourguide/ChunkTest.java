@@ -0,0 +1,98 @@
+/**
+ * 
+ */
+package tourguide;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that rendering chunks by hand gives exactly the text the original String.format based
+ * toString methods gave.
+ */
+public class ChunkTest {
+
+    private static final Annotation ANN = new Annotation("Holyrood – Palace ☃ 😀\n");
+
+    private static List<Chunk> chunks(double bearing, double distance) {
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+        overview.addIdAndTitle("T1", "Informatics at UoE");
+        overview.addIdAndTitle("T2", "Old Town");
+        Chunk.NearbyOverview nearby = new Chunk.NearbyOverview();
+        nearby.addTour("T1", "Informatics at UoE", distance);
+        return Arrays.asList(
+                overview,
+                new Chunk.BrowseOverview(),
+                nearby,
+                new Chunk.BrowseDetails("T1", "Informatics at UoE", ANN),
+                new Chunk.FollowHeader("Old Town", 1, 2),
+                new Chunk.FollowWaypoint(ANN),
+                new Chunk.FollowLeg(ANN),
+                new Chunk.FollowBearing(bearing, distance),
+                new Chunk.CreateHeader("Old Town", 2, 1));
+    }
+
+    @Test
+    public void matchesFormat() {
+        assertEquals(String.format("%1$s  %2$d/%3$d%n", "Old Town", 1, 2),
+                new Chunk.FollowHeader("Old Town", 1, 2).toString());
+        assertEquals(String.format("Current waypoint: %n%1$s", ANN),
+                new Chunk.FollowWaypoint(ANN).toString());
+        assertEquals(String.format("Leg to next waypoint:%n%1$s", ANN),
+                new Chunk.FollowLeg(ANN).toString());
+        assertEquals(String.format("Next waypoint is on bearing %1$.0f degrees at %2$.0fm %n", 79.5, 1520.49),
+                new Chunk.FollowBearing(79.5, 1520.49).toString());
+        assertEquals(String.format("New tour: %1$s. #legs: %2$d  #waypoints: %3$d%n", "Old Town", 2, 1),
+                new Chunk.CreateHeader("Old Town", 2, 1).toString());
+        assertEquals("NO TOURS TO SHOW" + System.lineSeparator(), new Chunk.BrowseOverview().toString());
+    }
+
+    @Test
+    public void roundingMatchesFormat() throws IOException {
+        Random random = new Random(42);
+        double[] special = {0.0, -0.0, 0.5, 1.5, 2.5, -0.4, -0.5, -2.5, 0.49999999999999994,
+                359.5, 1e14 + 0.5, 1e16, Double.NaN, Double.POSITIVE_INFINITY};
+        for (int i = 0; i < 100000 + special.length; i++) {
+            double value = i < special.length ? special[i]
+                    : i % 2 == 0 ? random.nextDouble() * 360.0 : (random.nextInt(20000) - 10000) / 2.0;
+            StringBuilder sb = new StringBuilder();
+            Chunk.appendRounded(sb, value);
+            assertEquals("Rounding " + value, String.format("%.0f", value), sb.toString());
+        }
+    }
+
+    @Test
+    public void renderToCharBuffer() throws IOException {
+        CharBuffer buffer = CharBuffer.allocate(1024);
+        for (Chunk chunk : chunks(123.456, 78.9)) {
+            buffer.clear();
+            chunk.render(buffer);
+            buffer.flip();
+            assertEquals(chunk.toString(), buffer.toString());
+        }
+    }
+
+    @Test
+    public void renderToUtf8() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        Utf8Sink sink = new Utf8Sink(buffer);
+        for (Chunk chunk : chunks(0.5, 2.5)) {
+            buffer.clear();
+            chunk.render(sink);
+            byte[] bytes = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(bytes);
+            assertArrayEquals(chunk.toString().getBytes(StandardCharsets.UTF_8), bytes);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package tourguide;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public interface Controller {
 
+    enum MODE {CREATE, BROWSE, DETAILS, FOLLOW}
+
 //    private List<Tour> tours;
 //    Tour currentTour;
 //    private int mode;
@@ -18,6 +21,13 @@ public interface Controller {
     Status addLeg(Annotation annotation);
 
     Status endNewTour();
+
+    /**
+     * Continues authoring a draft recovered from a journal, as if startNewTour and the draft's
+     * addLeg and addWaypoint calls had been made in this session.
+     * @param draft A draft from {@link TourJournal#drafts()}.
+     */
+    Status resumeNewTour(Tour draft);
     
     /*
      * Browse tours mode
@@ -26,6 +36,16 @@ public interface Controller {
 
     Status showToursOverview();
 
+    Status showToursOverview(String afterId, int limit);
+
+    Status showNearestTours(int count);
+
+    Status showToursWithin(double radius);
+
+    Status searchTours(String query);
+
+    Status searchTours(String query, String afterId, int limit);
+
     /*
      * Follow tour
      */
@@ -38,5 +58,34 @@ public interface Controller {
      */
     void setLocation(double easting, double northing);
 
+    TraceResult setLocations(double[] eastings, double[] northings);
+
     List<Chunk> getOutput();
+
+    /*
+     * Events
+     */
+
+    /**
+     * Registers a listener for the events of this session, and for tours added to its catalog.
+     * @param listener The listener.
+     * @param executor The executor to deliver events through, or null to call the listener directly
+     *                 on the thread that caused the event.
+     */
+    void addListener(TourListener listener, Executor executor);
+
+    /**
+     * Unregisters a listener. A session dropped without removing its listeners can still be collected.
+     */
+    void removeListener(TourListener listener);
+
+    /*
+     * Lifetime
+     */
+
+    /**
+     * Ends the session: it stops receiving its catalog's events and no longer counts towards the
+     * catalog's sessions by mode. The session must not be used afterwards.
+     */
+    void close();
 }
\ No newline at end of file
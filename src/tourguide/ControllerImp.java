@@ -3,30 +3,87 @@
  */
 package tourguide;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * @author pbj
+ *
+ * A single user's session. Holds only the per-user state (mode, selected tour, stage and location);
+ * the finished tours live in a {@link TourCatalog} that may be shared by many sessions.
+ * A session must only be used by one thread at a time, but sessions sharing a catalog may run concurrently.
  */
 public class ControllerImp implements Controller {
-    private static Logger logger = Logger.getLogger("tourguide");
+    private static final Logger logger = Log.LOGGER;
     private static final String LS = System.lineSeparator();
+    private static final int[] NO_ARRIVALS = new int[0];
+
+    // Preallocated wrong mode errors, indexed by the expected mode and then the current mode.
+    private static final Status.Error[][] WRONG_MODE = new Status.Error[MODE.values().length][MODE.values().length];
+    // Errors for when BROWSE or DETAILS mode is expected, indexed by the current mode.
+    private static final Status.Error[] NOT_BROWSING = new Status.Error[MODE.values().length];
+    static {
+        for (MODE current : MODE.values()) {
+            for (MODE expected : MODE.values()) {
+                WRONG_MODE[expected.ordinal()][current.ordinal()] =
+                        new Status.Error(Status.Error.Code.WRONG_MODE, expected, current);
+            }
+            NOT_BROWSING[current.ordinal()] =
+                    new Status.Error(Status.Error.Code.WRONG_MODE, MODE.BROWSE + " or " + MODE.DETAILS, current);
+        }
+    }
 
 
     private double currentEast;
     private double currentNorth;
 
-    private enum MODE {CREATE, BROWSE, DETAILS, FOLLOW}
-
     private MODE currentMode;
 
-    private Map<String, Tour> allTours = new HashMap<>();
+    private final TourCatalog catalog;
+
+    // Journal that authoring is recorded in, if the catalog has one, and this session's number in it.
+    private final TourJournal journal;
+    private final int journalSession;
 
     private Tour currentTour;
+    private FollowPlan currentPlan;
     private int currentStage;
 
-    private double waypointRadius, waypointSeparation;
+    // Whether a fix has been received since following began, so the path from it can be checked.
+    private boolean tracking;
+
+    // Whether the last fix was outside the catalog's corridor around the active leg, and the
+    // corridor it was checked against.
+    private boolean offRoute;
+    private TourCatalog.Corridor offRouteCorridor = TourCatalog.Corridor.NONE;
+
+    // Page of the overview shown in BROWSE mode: the tours after overviewCursor, at most overviewLimit of them.
+    private String overviewCursor;
+    private int overviewLimit = Integer.MAX_VALUE;
+
+    // Query whose results are shown, a page at a time, in place of the full overview while in BROWSE mode.
+    private String searchQuery;
+
+    // Result of the last nearby query, shown in place of the full overview while in BROWSE mode.
+    private Chunk.NearbyOverview nearbyTours;
+
+    // Notified of the events of this session.
+    private final Listeners listeners = new Listeners();
+
+    // The listeners added through addListener, which are also notified of the catalog's events, and
+    // the catalog subscription passing those on while there are any.
+    private final Listeners catalogListeners = new Listeners();
+    private CatalogRelay catalogRelay;
+
+    // Output of the last getOutput call, or null if the state has changed since. The overview also
+    // depends on the catalog, so it is only valid while the catalog version is unchanged.
+    private List<Chunk> cachedOutput;
+    private long cachedCatalogVersion;
+    private int cachedSettingsVersion;
 
     private String startBanner(String messageName) {
         return  LS 
@@ -36,10 +93,47 @@ public class ControllerImp implements Controller {
     }
 
     public ControllerImp(double waypointRadius, double waypointSeparation) {
+        this(new TourCatalog(waypointRadius, waypointSeparation));
+    }
+
+    /**
+     * Creates a new session on a catalog that may be shared with other sessions.
+     * @param catalog The catalog of finished tours.
+     */
+    public ControllerImp(TourCatalog catalog) {
         //logger.fine("CONTROLLER CREATED. Mode:" + MODE.BROWSE + ", Waypoint Radius:" + waypointRadius + ", Waypoint Separation: " + waypointSeparation);
         currentMode = MODE.BROWSE;
-        this.waypointRadius = waypointRadius;
-        this.waypointSeparation = waypointSeparation;
+        this.catalog = catalog;
+        journal = catalog.getJournal();
+        journalSession = journal == null ? 0 : journal.newSession();
+    }
+
+    private static Status reject(Status.Error error) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(error.getMessage());
+        }
+        return error;
+    }
+
+    /**
+     * Refuses an authoring operation the journal couldn't record, leaving the session unchanged.
+     */
+    private static Status journalFailed(IOException e) {
+        logger.warning(() -> "JOURNAL FAILED: " + e.getMessage());
+        return new Status.Error(Status.Error.Code.JOURNAL_FAILED, e.getMessage());
+    }
+
+    private Status wrongMode(MODE expected) {
+        return reject(WRONG_MODE[expected.ordinal()][currentMode.ordinal()]);
+    }
+
+    private void changeMode(MODE mode) {
+        MODE previous = currentMode;
+        logger.info(() -> "MODE CHANGED: " + previous + " -> " + mode);
+        currentMode = mode;
+        if (previous != mode && !listeners.isEmpty()) {
+            listeners.fire(new TourEvent.ModeChanged(previous, mode));
+        }
     }
 
     //--------------------------
@@ -53,14 +147,24 @@ public class ControllerImp implements Controller {
     public Status startNewTour(String id, String title, Annotation annotation) {
         logger.entering("tourguide.ControllerImp", "startNewTour", new Object[]{id, title, annotation});
         if (currentMode != MODE.BROWSE) {
-            logger.fine("ERROR: Incorrect mode, expected " + MODE.BROWSE + ", got " + currentMode + ".");
-            return new Status.Error("ERROR: Incorrect mode, expected " + MODE.BROWSE + ", got " + currentMode + ".");
+            return wrongMode(MODE.BROWSE);
+        }
+        Status status = TourRules.checkId(id);
+        if (status != Status.OK) {
+            return reject((Status.Error) status);
         }
         //logger.fine(startBanner("startNewTour"));
-        currentTour = new Tour(id, title, annotation);
-        logger.info("TOUR CREATED: " + currentTour);
-        logger.info("MODE CHANGED: " + currentMode + " -> " + MODE.CREATE);
-        currentMode = MODE.CREATE;
+        if (journal != null) {
+            try {
+                journal.startNewTour(journalSession, id, title, annotation);
+            } catch (IOException e) {
+                return journalFailed(e);
+            }
+        }
+        currentTour = new Tour(id, title, Annotation.intern(annotation));
+        logger.info(() -> "TOUR CREATED: " + currentTour.id);
+        changeMode(MODE.CREATE);
+        cachedOutput = null;
         return Status.OK;
     }
 
@@ -68,30 +172,33 @@ public class ControllerImp implements Controller {
     public Status addWaypoint(Annotation annotation) {
         logger.entering("tourguide.ControllerImp", "addWaypoint", annotation);
         if (currentMode != MODE.CREATE) {
-            logger.fine("ERROR: Incorrect mode, expected " + MODE.CREATE + ", got " + currentMode + ".");
-            return new Status.Error("ERROR: Incorrect mode, expected " + MODE.CREATE + ", got " + currentMode + ".");
+            return wrongMode(MODE.CREATE);
         }
         //logger.fine(startBanner("addWaypoint"));
 
         //Check if waypoint is too close.
-        if (currentTour.waypoints.size() > 0) {
-            Waypoint last = currentTour.waypoints.get(currentTour.waypoints.size()-1);
-            Displacement d = new Displacement(last.east - currentEast, last.north - currentNorth);
-            if (d.distance() < waypointSeparation) {
-                Waypoint cur = new Waypoint(currentEast, currentNorth, annotation);
-                logger.fine("ERROR: Waypoint ("+cur+") too close to the last ("+last+").");
-                return new Status.Error("ERROR: Waypoint ("+cur+") too close to the last ("+last+").");
-            }
+        Status status = TourRules.checkWaypoint(currentTour, currentEast, currentNorth, annotation,
+                catalog.getWaypointSeparation());
+        if (status != Status.OK) {
+            return reject((Status.Error) status);
         }
 
+        if (journal != null) {
+            try {
+                journal.addWaypoint(journalSession, currentEast, currentNorth, annotation);
+            } catch (IOException e) {
+                return journalFailed(e);
+            }
+        }
         //Add new waypoint
-        currentTour.waypoints.add(new Waypoint(currentEast, currentNorth, annotation));
-        logger.info(currentTour.waypoints.get(currentTour.waypoints.size()-1) + " added to tour " + currentTour.id);
+        currentTour.waypoints.add(new Waypoint(currentEast, currentNorth, Annotation.intern(annotation)));
+        logger.info(() -> currentTour.waypoints.get(currentTour.waypoints.size()-1) + " added to tour " + currentTour.id);
         //If waypoint doesn't have annotation, add default annotation.
         if (currentTour.legAnnotations.size() < currentTour.waypoints.size()) {
-            logger.info("Leg annotation " + Annotation.DEFAULT + " added to tour " + currentTour.id);
+            logger.info(() -> "Leg annotation " + Annotation.DEFAULT + " added to tour " + currentTour.id);
             currentTour.legAnnotations.add(Annotation.DEFAULT);
         }
+        cachedOutput = null;
         return Status.OK;
     }
 
@@ -99,18 +206,25 @@ public class ControllerImp implements Controller {
     public Status addLeg(Annotation annotation) {
         logger.entering("tourguide.ControllerImp", "addLeg", annotation);
         if (currentMode != MODE.CREATE) {
-            logger.fine("ERROR: Incorrect mode, expected " + MODE.CREATE + ", got " + currentMode + ".");
-            return new Status.Error("ERROR: Incorrect mode, expected " + MODE.CREATE + ", got " + currentMode + ".");
+            return wrongMode(MODE.CREATE);
         }
 
         //logger.fine(startBanner("addLeg"));
 
-        if (currentTour.legAnnotations.size() > currentTour.waypoints.size()) {
-            logger.fine("ERROR: Too many leg annotations in tour "+ currentTour.id +".");
-            return new Status.Error("ERROR: Too many leg annotations in tour "+ currentTour.id +".");
+        Status status = TourRules.checkLeg(currentTour);
+        if (status != Status.OK) {
+            return reject((Status.Error) status);
+        }
+        if (journal != null) {
+            try {
+                journal.addLeg(journalSession, annotation);
+            } catch (IOException e) {
+                return journalFailed(e);
+            }
         }
-        logger.info("Leg annotation " + annotation + " added to tour " + currentTour.id);
-        currentTour.legAnnotations.add(annotation);
+        logger.info(() -> "Leg annotation " + annotation + " added to tour " + currentTour.id);
+        currentTour.legAnnotations.add(Annotation.intern(annotation));
+        cachedOutput = null;
         return Status.OK;
     }
 
@@ -118,30 +232,58 @@ public class ControllerImp implements Controller {
     public Status endNewTour() {
         logger.entering("tourguide.ControllerImp", "endNewTour");
         if (currentMode != MODE.CREATE) {
-            logger.fine("ERROR: Incorrect mode, expected " + MODE.CREATE + ", got " + currentMode + ".");
-            return new Status.Error("ERROR: Incorrect mode, expected " + MODE.CREATE + ", got " + currentMode + ".");
-        }
-        if (currentTour.waypoints.size() < 1) {
-            logger.fine("ERROR: Can't create tour without waypoints.");
-            return new Status.Error("ERROR: Can't create tour without waypoints.");
-        }
-        if (currentTour.legAnnotations.size() != currentTour.waypoints.size()) {
-            logger.fine(
-                    "ERROR: Number of legs must be same as number of waypoints." +
-                            "Legs: " + currentTour.legAnnotations.size() + ", Waypoints: " + currentTour.legAnnotations.size()
-            );
-            return new Status.Error(
-                    "ERROR: Number of legs must be same as number of waypoints." +
-                            "Legs: " + currentTour.legAnnotations.size() + ", Waypoints: " + currentTour.legAnnotations.size()
-            );
+            return wrongMode(MODE.CREATE);
+        }
+        Status status = TourRules.checkFinished(currentTour);
+        if (status != Status.OK) {
+            return reject((Status.Error) status);
         }
         //logger.fine(startBanner("endNewTour"));
 
-        logger.info("MODE CHANGED: " + currentMode + " -> " + MODE.BROWSE);
-        currentMode = MODE.BROWSE;
+        if (journal != null) {
+            try {
+                journal.endNewTour(journalSession);
+            } catch (IOException e) {
+                return journalFailed(e);
+            }
+        }
+        // Publish before leaving CREATE mode, so a failure leaves the session authoring the tour.
+        catalog.add(currentTour);
+        logger.info(() -> "TOUR ADDED: " + currentTour.id);
+
+        changeMode(MODE.BROWSE);
+        nearbyTours = null;
+        searchQuery = null;
+        overviewCursor = null;
+        overviewLimit = Integer.MAX_VALUE;
+        cachedOutput = null;
+        return Status.OK;
+    }
 
-        logger.info("TOUR ADDED: " + currentTour);
-        allTours.put(currentTour.id, currentTour);
+    @Override
+    public Status resumeNewTour(Tour draft) {
+        logger.entering("tourguide.ControllerImp", "resumeNewTour", draft);
+        if (currentMode != MODE.BROWSE) {
+            return wrongMode(MODE.BROWSE);
+        }
+        if (draft == null) {
+            return reject(Status.Error.NO_DRAFT);
+        }
+        Status status = TourRules.checkId(draft.id);
+        if (status != Status.OK) {
+            return reject((Status.Error) status);
+        }
+        if (journal != null) {
+            try {
+                journal.resumeNewTour(journalSession, draft);
+            } catch (IOException e) {
+                return journalFailed(e);
+            }
+        }
+        currentTour = draft;
+        logger.info(() -> "TOUR RESUMED: " + currentTour.id);
+        changeMode(MODE.CREATE);
+        cachedOutput = null;
         return Status.OK;
     }
 
@@ -153,32 +295,118 @@ public class ControllerImp implements Controller {
     public Status showTourDetails(String tourID) {
         logger.entering("tourguide.ControllerImp", "showTourDetails", tourID);
         if (currentMode != MODE.BROWSE) {
-            logger.fine("ERROR: Incorrect mode, expected " + MODE.BROWSE + ", got " + currentMode + ".");
-            return new Status.Error("ERROR: Incorrect mode, expected " + MODE.BROWSE + ", got " + currentMode + ".");
+            return wrongMode(MODE.BROWSE);
         }
-        if (!allTours.containsKey(tourID)) {
-            logger.fine("ERROR: Tour " + tourID + " not found.");
-            return new Status.Error("ERROR: Tour " + tourID + " not found.");
+        Tour tour = catalog.get(tourID);
+        if (tour == null) {
+            logger.fine(() -> "ERROR: Tour " + tourID + " not found.");
+            return Status.Error.TOUR_NOT_FOUND;
         }
 
-        logger.info("MODE CHANGED: " + currentMode + " -> " + MODE.DETAILS);
-        currentMode = MODE.DETAILS;
+        changeMode(MODE.DETAILS);
 
-        currentTour = allTours.get(tourID);
-        logger.info("VIEWING TOUR: " + currentTour);
+        currentTour = tour;
+        logger.info(() -> "VIEWING TOUR: " + currentTour.id);
+        cachedOutput = null;
         return Status.OK;
     }
   
     @Override
     public Status showToursOverview() {
-        logger.entering("tourguide.ControllerImp", "showTourDetails");
+        return showToursOverview(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Shows one page of the overview, in order of tour id.
+     * @param afterId The cursor from the previous page, or null for the first page.
+     * @param limit The maximum number of tours on the page.
+     */
+    @Override
+    public Status showToursOverview(String afterId, int limit) {
+        logger.entering("tourguide.ControllerImp", "showToursOverview", new Object[]{afterId, limit});
         if (currentMode == MODE.CREATE) {
-            logger.fine("ERROR: Incorrect mode, can't browse while creating new tour.");
-            return new Status.Error("ERROR: Incorrect mode, can't browse while creating new tour.");
+            return reject(Status.Error.BROWSE_WHILE_CREATING);
+        }
+        if (limit <= 0) {
+            return reject(new Status.Error(Status.Error.Code.BAD_PAGE_SIZE, limit));
         }
 
-        logger.info("MODE CHANGED: " + currentMode + " -> " + MODE.BROWSE);
-        currentMode = MODE.BROWSE;
+        changeMode(MODE.BROWSE);
+        nearbyTours = null;
+        searchQuery = null;
+        overviewCursor = afterId;
+        overviewLimit = limit;
+        cachedOutput = null;
+        return Status.OK;
+    }
+
+    @Override
+    public Status showNearestTours(int count) {
+        logger.entering("tourguide.ControllerImp", "showNearestTours", count);
+        if (currentMode == MODE.CREATE) {
+            return reject(Status.Error.BROWSE_WHILE_CREATING);
+        }
+        if (count <= 0) {
+            return reject(new Status.Error(Status.Error.Code.BAD_TOUR_COUNT, count));
+        }
+        return showNearby(catalog.nearestTours(currentEast, currentNorth, count));
+    }
+
+    @Override
+    public Status showToursWithin(double radius) {
+        logger.entering("tourguide.ControllerImp", "showToursWithin", radius);
+        if (currentMode == MODE.CREATE) {
+            return reject(Status.Error.BROWSE_WHILE_CREATING);
+        }
+        // Also rejects NaN.
+        if (!(radius >= 0)) {
+            return reject(new Status.Error(Status.Error.Code.BAD_RADIUS, radius));
+        }
+        return showNearby(catalog.toursWithin(currentEast, currentNorth, radius));
+    }
+
+    @Override
+    public Status searchTours(String query) {
+        return searchTours(query, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Shows one page of the tours matching a query, best match first.
+     * @param query Words to find in tour titles and annotations. A word ending in '*' is a prefix.
+     * @param afterId The cursor from the previous page, or null for the first page.
+     * @param limit The maximum number of tours on the page.
+     */
+    @Override
+    public Status searchTours(String query, String afterId, int limit) {
+        logger.entering("tourguide.ControllerImp", "searchTours", new Object[]{query, afterId, limit});
+        if (currentMode == MODE.CREATE) {
+            return reject(Status.Error.BROWSE_WHILE_CREATING);
+        }
+        if (limit <= 0) {
+            return reject(new Status.Error(Status.Error.Code.BAD_PAGE_SIZE, limit));
+        }
+        if (query == null || !TextIndex.hasTerms(query)) {
+            return reject(new Status.Error(Status.Error.Code.NO_SEARCH_TERMS, query));
+        }
+
+        changeMode(MODE.BROWSE);
+        nearbyTours = null;
+        searchQuery = query;
+        overviewCursor = afterId;
+        overviewLimit = limit;
+        cachedOutput = null;
+        return Status.OK;
+    }
+
+    private Status showNearby(List<SpatialIndex.Hit> hits) {
+        changeMode(MODE.BROWSE);
+        searchQuery = null;
+        nearbyTours = new Chunk.NearbyOverview();
+        for (SpatialIndex.Hit hit : hits) {
+            nearbyTours.addTour(hit.tour.id, hit.tour.title, hit.distance);
+        }
+        logger.info(() -> "NEARBY TOURS: " + hits.size());
+        cachedOutput = null;
         return Status.OK;
     }
 
@@ -190,21 +418,25 @@ public class ControllerImp implements Controller {
     public Status followTour(String id) {
         logger.entering("tourguide.ControllerImp", "followTour", id);
         if (currentMode != MODE.DETAILS && currentMode != MODE.BROWSE) {
-            logger.fine("ERROR: Incorrect mode, expected " + MODE.BROWSE + " or " + MODE.DETAILS + ", got " + currentMode + ".");
-            return new Status.Error("ERROR: Incorrect mode, expected " + MODE.BROWSE + " or " + MODE.DETAILS + ", got " + currentMode + ".");
+            return reject(NOT_BROWSING[currentMode.ordinal()]);
         }
-        if (!allTours.containsKey(id)) {
-            logger.fine("ERROR: Tour " + id + " not found.");
-            return new Status.Error("ERROR: Tour " + id + " not found.");
+        Tour tour = catalog.get(id);
+        if (tour == null) {
+            logger.fine(() -> "ERROR: Tour " + id + " not found.");
+            return Status.Error.TOUR_NOT_FOUND;
         }
-        logger.info("MODE CHANGED: " + currentMode + " -> " + MODE.FOLLOW);
-        currentMode = MODE.FOLLOW;
+        changeMode(MODE.FOLLOW);
 
-        currentTour = allTours.get(id);
-        logger.info("FOLLOWING TOUR: " + currentTour);
+        currentTour = tour;
+        currentPlan = tour.getPlan();
+        logger.info(() -> "FOLLOWING TOUR: " + currentTour.id);
         
         currentStage = 0;
-        logger.info("CURRENT STAGE: " + currentStage);
+        tracking = false;
+        offRoute = false;
+        offRouteCorridor = catalog.getCorridor();
+        logger.info(() -> "CURRENT STAGE: " + currentStage);
+        cachedOutput = null;
         return Status.OK;
     }
 
@@ -212,12 +444,15 @@ public class ControllerImp implements Controller {
     public Status endSelectedTour() {
         logger.entering("tourguide.ControllerImp", "endSelectedTour");
         if (currentMode != MODE.FOLLOW) {
-            logger.fine("ERROR: Incorrect mode, expected " + MODE.FOLLOW + ", got " + currentMode + ".");
-            return new Status.Error("ERROR: Incorrect mode, expected " + MODE.FOLLOW + ", got " + currentMode + ".");
+            return wrongMode(MODE.FOLLOW);
         }
         
-        logger.info("MODE CHANGED: " + currentMode + " -> " + MODE.BROWSE);
-        currentMode = MODE.BROWSE;
+        changeMode(MODE.BROWSE);
+        nearbyTours = null;
+        searchQuery = null;
+        overviewCursor = null;
+        overviewLimit = Integer.MAX_VALUE;
+        cachedOutput = null;
         return Status.OK;
     }
 
@@ -226,32 +461,135 @@ public class ControllerImp implements Controller {
     //--------------------------
     @Override
     public void setLocation(double easting, double northing) {
-        logger.entering("tourguide.ControllerImp", "setLocation", new Object[]{easting, northing});
-        logger.info("LOCATION CHANGED: (e:"+currentEast+", n:"+currentNorth+") -> (e:"+easting+", n:"+northing+")");
+        if (Log.hot(Level.FINER)) {
+            logger.entering("tourguide.ControllerImp", "setLocation", new Object[]{easting, northing});
+        }
+        if (Log.hot(Level.INFO)) {
+            logger.info("LOCATION CHANGED: (e:"+currentEast+", n:"+currentNorth+") -> (e:"+easting+", n:"+northing+")");
+        }
+        if (currentMode == MODE.FOLLOW && (easting != currentEast || northing != currentNorth)) {
+            cachedOutput = null;
+        }
+        double previousEast = currentEast;
+        double previousNorth = currentNorth;
         currentEast = easting;
         currentNorth = northing;
 
-        if (currentMode == MODE.FOLLOW
-                && currentStage < currentTour.waypoints.size()) {
-            Displacement next = new Displacement(
-                    currentTour.waypoints.get(currentStage).east - currentEast,
-                    currentTour.waypoints.get(currentStage).north - currentNorth
-            );
-            if (next.distance() <= waypointRadius) {
-                logger.info("REACHED NEXT WAYPOINT. " +
-                        "Location: (e:"+currentEast+", n:"+currentNorth+"), " +
-                        "Waypoint: (e:"+currentTour.waypoints.get(currentStage).east+", n:"+currentTour.waypoints.get(currentStage).north+"), " +
-                        "Distance: " + next.distance()
-                );
-                currentStage++;
+        if (currentMode == MODE.FOLLOW) {
+            // The first fix after starting to follow has no known path leading to it.
+            int stage = tracking
+                    ? currentPlan.advance(currentStage, previousEast, previousNorth, easting, northing)
+                    : currentPlan.advance(currentStage, easting, northing, easting, northing);
+            tracking = true;
+            for (; currentStage < stage; currentStage++) {
+                if (Log.hot(Level.INFO)) {
+                    logger.info("REACHED NEXT WAYPOINT. " +
+                            "Location: (e:"+currentEast+", n:"+currentNorth+"), " +
+                            "Waypoint: (e:"+currentPlan.east(currentStage)+", n:"+currentPlan.north(currentStage)+")"
+                    );
+                }
+                if (!listeners.isEmpty()) {
+                    fireReached(currentStage, easting, northing);
+                }
+            }
+            checkOffRoute(easting, northing);
+            if (Log.hot(Level.INFO)) {
                 logger.info("CURRENT STAGE: " + currentStage);
             }
         }
     }
 
+    /**
+     * Checks a fix against the catalog's corridor around the active leg. Before the first waypoint
+     * there is no leg to follow yet, and after the last there is none left, so neither is off route.
+     */
+    private void checkOffRoute(double easting, double northing) {
+        TourCatalog.Corridor corridor = catalog.getCorridor();
+        offRouteCorridor = corridor;
+        offRoute = corridor.widthSquared > 0.0
+                && currentStage > 0 && currentStage < currentPlan.size
+                && currentPlan.distanceSquaredFromLeg(currentStage, easting, northing) > corridor.widthSquared;
+    }
+
+    private void fireReached(int waypoint, double easting, double northing) {
+        listeners.fire(new TourEvent.WaypointReached(currentTour.id, waypoint, easting, northing));
+        if (waypoint == currentPlan.size - 1) {
+            listeners.fire(new TourEvent.TourFinished(currentTour.id));
+        }
+    }
+
+    /**
+     * Processes a trace of location fixes in one pass, with the same effect as calling
+     * {@link #setLocation} for each fix in turn, but without per-fix logging or allocation.
+     */
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+        if (Log.hot(Level.FINER)) {
+            logger.entering("tourguide.ControllerImp", "setLocations", eastings.length);
+        }
+        if (eastings.length != northings.length) {
+            throw new IllegalArgumentException(
+                    "Trace has " + eastings.length + " eastings but " + northings.length + " northings.");
+        }
+        int fixes = eastings.length;
+        int startStage = currentStage;
+        int[] arrivals = NO_ARRIVALS;
+        if (currentMode == MODE.FOLLOW && currentStage < currentPlan.size) {
+            FollowPlan plan = currentPlan;
+            int stage = currentStage;
+            double fromEast = currentEast, fromNorth = currentNorth;
+            boolean moved = tracking;
+            arrivals = new int[plan.size - stage];
+            for (int i = 0; i < fixes && stage < plan.size; i++) {
+                if (!moved) {
+                    fromEast = eastings[i];
+                    fromNorth = northings[i];
+                    moved = true;
+                }
+                int reached = plan.advance(stage, fromEast, fromNorth, eastings[i], northings[i]);
+                for (; stage < reached; stage++) {
+                    arrivals[stage - startStage] = i;
+                    if (!listeners.isEmpty()) {
+                        fireReached(stage, eastings[i], northings[i]);
+                    }
+                }
+                fromEast = eastings[i];
+                fromNorth = northings[i];
+            }
+            if (stage - startStage < arrivals.length) {
+                arrivals = Arrays.copyOf(arrivals, stage - startStage);
+            }
+            currentStage = stage;
+        }
+        if (fixes > 0) {
+            currentEast = eastings[fixes - 1];
+            currentNorth = northings[fixes - 1];
+            if (currentMode == MODE.FOLLOW) {
+                cachedOutput = null;
+                tracking = true;
+                checkOffRoute(currentEast, currentNorth);
+            }
+        }
+        if (Log.hot(Level.INFO)) {
+            logger.info("TRACE PROCESSED: " + fixes + " fixes, stage " + startStage + " -> " + currentStage);
+        }
+        return new TraceResult(startStage, currentStage, arrivals, currentEast, currentNorth);
+    }
+
+    /**
+     * Returns the output for the current state. The result is immutable and is reused by later
+     * calls until the state of this session, the catalog's output settings, or the catalog while
+     * browsing, changes.
+     */
     @Override
     public List<Chunk> getOutput() {
         //logger.entering("tourguide.ControllerImp", "getOutput");
+        long catalogVersion = catalog.version();
+        int settingsVersion = catalog.settingsVersion();
+        if (cachedOutput != null && cachedSettingsVersion == settingsVersion
+                && (currentMode != MODE.BROWSE || nearbyTours != null || cachedCatalogVersion == catalogVersion)) {
+            return cachedOutput;
+        }
         List<Chunk> output = new ArrayList<>();
         switch (currentMode) {
             case CREATE: {
@@ -259,9 +597,21 @@ public class ControllerImp implements Controller {
                 break;
             }
             case BROWSE: {
+                if (nearbyTours != null) {
+                    output.add(nearbyTours);
+                    break;
+                }
+                // Fetch one extra tour to find out whether there is a following page.
+                int fetch = overviewLimit == Integer.MAX_VALUE ? overviewLimit : overviewLimit + 1;
+                List<Tour> page = searchQuery != null
+                        ? catalog.search(searchQuery, overviewCursor, fetch)
+                        : catalog.toursAfter(overviewCursor, fetch);
                 Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
-                for (Tour tour : allTours.values()) {
-                    overview.addIdAndTitle(tour.id, tour.title);
+                for (int i = 0; i < page.size() && i < overviewLimit; i++) {
+                    overview.addIdAndTitle(page.get(i).id, page.get(i).title);
+                }
+                if (page.size() > overviewLimit) {
+                    overview.nextCursor = page.get(overviewLimit - 1).id;
                 }
                 output.add(overview);
                 break;
@@ -273,36 +623,117 @@ public class ControllerImp implements Controller {
             }
             case FOLLOW: {
                 output.add(
-                        new Chunk.FollowHeader(currentTour.title, currentStage, currentTour.waypoints.size())
+                        new Chunk.FollowHeader(currentPlan.title, currentStage, currentPlan.size)
                 );
-                if (currentStage > 0) {
-                    Displacement current = new Displacement(
-                            currentTour.waypoints.get(currentStage-1).east - currentEast,
-                            currentTour.waypoints.get(currentStage-1).north - currentNorth
+                if (currentStage > 0 && currentPlan.isAt(currentStage-1, currentEast, currentNorth)) {
+                    output.add(
+                            new Chunk.FollowWaypoint(currentPlan.waypointAnnotation(currentStage-1))
                     );
-                    if (current.distance() <= waypointRadius) {
-                        output.add(
-                                new Chunk.FollowWaypoint(currentTour.waypoints.get(currentStage-1).annotation)
-                        );
-                    }
                 }
-                if (currentStage < currentTour.waypoints.size()) {
+                double distanceToNext = 0.0;
+                if (currentStage < currentPlan.size) {
                     output.add(
-                            new Chunk.FollowLeg(currentTour.legAnnotations.get(currentStage))
-                    );
-                    Displacement next = new Displacement(
-                            currentTour.waypoints.get(currentStage).east - currentEast,
-                            currentTour.waypoints.get(currentStage).north - currentNorth
+                            new Chunk.FollowLeg(currentPlan.legAnnotation(currentStage))
                     );
+                    double east = currentPlan.east(currentStage) - currentEast;
+                    double north = currentPlan.north(currentStage) - currentNorth;
+                    distanceToNext = Displacement.distance(east, north);
                     output.add(
-                            new Chunk.FollowBearing(next.bearing(), next.distance())
+                            new Chunk.FollowBearing(
+                                    catalog.isFastMath()
+                                            ? Displacement.fastBearing(east, north)
+                                            : Displacement.bearing(east, north),
+                                    distanceToNext)
                     );
                 }
+                if (catalog.getCorridor() != offRouteCorridor) {
+                    checkOffRoute(currentEast, currentNorth); // The corridor has changed.
+                }
+                if (offRoute) {
+                    output.add(new Chunk.OffRoute(offRouteCorridor.width));
+                }
+                if (catalog.isFollowProgress()) {
+                    // O(1) from the plan's prefix sums, however many waypoints are left.
+                    double remaining = currentPlan.remaining(currentStage, distanceToNext);
+                    double done = Math.max(0.0, currentPlan.length - remaining);
+                    double percent = currentPlan.length > 0.0
+                            ? 100.0 * done / currentPlan.length
+                            : (currentStage < currentPlan.size ? 0.0 : 100.0);
+                    output.add(new Chunk.FollowProgress(done, remaining, percent));
+                }
 
             }
         }
-        return output;
+        cachedOutput = Collections.unmodifiableList(output);
+        cachedCatalogVersion = catalogVersion;
+        cachedSettingsVersion = settingsVersion;
+        return cachedOutput;
+    }
+
+
+
+    //--------------------------
+    // Events
+    //--------------------------
+
+    @Override
+    public void addListener(TourListener listener, Executor executor) {
+        listeners.add(listener, executor);
+        catalogListeners.add(listener, executor);
+        if (catalogRelay == null) {
+            catalogRelay = new CatalogRelay(this);
+            catalog.addListener(catalogRelay, null);
+        }
     }
 
+    /**
+     * Registers a listener for the events of this session only, not those of its catalog.
+     */
+    void addSessionListener(TourListener listener) {
+        listeners.add(listener, null);
+    }
 
+    @Override
+    public void removeListener(TourListener listener) {
+        listeners.remove(listener);
+        catalogListeners.remove(listener);
+        if (catalogRelay != null && catalogListeners.isEmpty()) {
+            catalog.removeListener(catalogRelay);
+            catalogRelay = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.fine("SESSION CLOSED");
+        if (catalogRelay != null) {
+            catalog.removeListener(catalogRelay);
+            catalogRelay = null;
+        }
+    }
+
+    /**
+     * The one catalog subscription of a session with listeners. Holds the session weakly, so a
+     * session dropped without removing its listeners can still be collected, after which the
+     * relay unsubscribes on the catalog's next event.
+     */
+    private static final class CatalogRelay implements TourListener {
+        private final WeakReference<ControllerImp> session;
+        private final TourCatalog catalog;
+
+        CatalogRelay(ControllerImp session) {
+            this.session = new WeakReference<>(session);
+            this.catalog = session.catalog;
+        }
+
+        @Override
+        public void onEvent(TourEvent event) {
+            ControllerImp session = this.session.get();
+            if (session == null) {
+                catalog.removeListener(this);
+            } else {
+                session.catalogListeners.fire(event);
+            }
+        }
+    }
 }
@@ -0,0 +1,248 @@
+package tourguide;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the sessions of one catalog.
+ *
+ * Attach metrics to a catalog with {@link #attach}; sessions created from then on are wrapped in an
+ * {@link InstrumentedController} that records every call. Recording is lock-free: counts are
+ * LongAdders and latencies go into {@link LatencyHistogram}s. setLocation is counted on every call
+ * but only timed on one call in {@link #SET_LOCATION_SAMPLE} per session, as reading the clock
+ * costs several times more than the call itself. Sessions are counted by mode until they are
+ * {@link Controller#close closed}.
+ *
+ * Read the metrics with {@link #snapshot()}, or over JMX after {@link #register}.
+ */
+public class ControllerMetrics implements ControllerMetricsMXBean {
+
+    public enum Operation {
+        START_NEW_TOUR, ADD_WAYPOINT, ADD_LEG, END_NEW_TOUR, RESUME_NEW_TOUR,
+        SHOW_TOUR_DETAILS, SHOW_TOURS_OVERVIEW, SHOW_NEAREST_TOURS, SHOW_TOURS_WITHIN, SEARCH_TOURS,
+        FOLLOW_TOUR, END_SELECTED_TOUR,
+        SET_LOCATION, SET_LOCATIONS, GET_OUTPUT
+    }
+
+    /**
+     * setLocation calls are timed once in this many per session. A power of two.
+     */
+    public static final int SET_LOCATION_SAMPLE = 64;
+
+    // Rough heap cost of a tour and of each of its waypoints, including its share of the FollowPlan.
+    static final long TOUR_BYTES = 200;
+    static final long WAYPOINT_BYTES = 100;
+
+    private final TourCatalog catalog;
+    private final LongAdder[] calls = new LongAdder[Operation.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder[] errors = new LongAdder[Status.Error.Code.values().length];
+    private final LongAdder[] sessions = new LongAdder[Controller.MODE.values().length];
+    private final Map<String, LongAdder> arrivals = new ConcurrentHashMap<>();
+
+    private ControllerMetrics(TourCatalog catalog) {
+        this.catalog = catalog;
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Starts recording metrics for the sessions created on a catalog from now on.
+     * @param catalog The catalog.
+     * @return The metrics.
+     */
+    public static ControllerMetrics attach(TourCatalog catalog) {
+        ControllerMetrics metrics = new ControllerMetrics(catalog);
+        catalog.setMetrics(metrics);
+        return metrics;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     * @param name The name that distinguishes this catalog from others in the JVM.
+     * @return The name the metrics are registered under.
+     * @throws JMException If registration fails, e.g. because the name is taken.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("tourguide:type=ControllerMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    //--------------------------
+    // Recording
+    //--------------------------
+
+    void called(Operation operation) {
+        calls[operation.ordinal()].increment();
+    }
+
+    void timed(Operation operation, long nanos) {
+        latencies[operation.ordinal()].record(nanos);
+    }
+
+    void failed(Status.Error error) {
+        errors[error.getCode().ordinal()].increment();
+    }
+
+    void arrived(String tourId) {
+        arrivals.computeIfAbsent(String.valueOf(tourId), id -> new LongAdder()).increment();
+    }
+
+    /**
+     * Moves a session between the counts of sessions by mode.
+     * @param from The mode it left, or null for a new session.
+     * @param to The mode it entered, or null for a closed session.
+     */
+    void modeChanged(Controller.MODE from, Controller.MODE to) {
+        if (from != null) {
+            sessions[from.ordinal()].decrement();
+        }
+        if (to != null) {
+            sessions[to.ordinal()].increment();
+        }
+    }
+
+    //--------------------------
+    // Reading
+    //--------------------------
+
+    /**
+     * A consistent-enough copy of the metrics: each value is read once, though not all at the same instant.
+     */
+    public static final class Snapshot {
+        public final Map<Operation, Long> calls;
+        public final Map<Operation, LatencyHistogram> latencies;
+        public final Map<Status.Error.Code, Long> errors;
+        // Open sessions in each mode; closed sessions are no longer counted.
+        public final Map<Controller.MODE, Long> sessionsByMode;
+        public final Map<String, Long> arrivalsByTour;
+        public final int catalogSize;
+        public final long estimatedCatalogBytes;
+
+        private Snapshot(ControllerMetrics metrics) {
+            Map<Operation, Long> calls = new EnumMap<>(Operation.class);
+            Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values()) {
+                calls.put(operation, metrics.calls[operation.ordinal()].sum());
+                latencies.put(operation, metrics.latencies[operation.ordinal()].copy());
+            }
+            Map<Status.Error.Code, Long> errors = new EnumMap<>(Status.Error.Code.class);
+            for (Status.Error.Code code : Status.Error.Code.values()) {
+                errors.put(code, metrics.errors[code.ordinal()].sum());
+            }
+            Map<Controller.MODE, Long> sessions = new EnumMap<>(Controller.MODE.class);
+            for (Controller.MODE mode : Controller.MODE.values()) {
+                sessions.put(mode, metrics.sessions[mode.ordinal()].sum());
+            }
+            Map<String, Long> arrivals = new TreeMap<>();
+            metrics.arrivals.forEach((id, count) -> arrivals.put(id, count.sum()));
+
+            this.calls = Collections.unmodifiableMap(calls);
+            this.latencies = Collections.unmodifiableMap(latencies);
+            this.errors = Collections.unmodifiableMap(errors);
+            this.sessionsByMode = Collections.unmodifiableMap(sessions);
+            this.arrivalsByTour = Collections.unmodifiableMap(arrivals);
+            this.catalogSize = metrics.catalog.size();
+            this.estimatedCatalogBytes = metrics.getEstimatedCatalogBytes();
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        return byOperation(operation -> calls[operation.ordinal()].sum());
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Status.Error.Code code : Status.Error.Code.values()) {
+            result.put(code.name(), errors[code.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Micros() {
+        return latencyMicros(h -> h.percentile(50));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Micros() {
+        return latencyMicros(h -> h.percentile(99));
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMicros() {
+        return latencyMicros(h -> h.percentile(100));
+    }
+
+    @Override
+    public Map<String, Long> getArrivalsByTour() {
+        return snapshot().arrivalsByTour;
+    }
+
+    @Override
+    public Map<String, Long> getSessionsByMode() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Controller.MODE mode : Controller.MODE.values()) {
+            result.put(mode.name(), sessions[mode.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public int getCatalogSize() {
+        return catalog.size();
+    }
+
+    @Override
+    public long getEstimatedCatalogBytes() {
+        return catalog.estimatedBytes();
+    }
+
+    /**
+     * @return The rough heap cost of a tour. Tours still in a catalog file are only an index entry
+     *         until first looked up.
+     */
+    static long estimatedBytes(Tour tour) {
+        return tour.isLoaded() ? TOUR_BYTES + WAYPOINT_BYTES * tour.waypoints.size() : TOUR_BYTES;
+    }
+
+    private Map<String, Long> byOperation(ToLongFunction<Operation> value) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Operation operation : Operation.values()) {
+            result.put(operation.name(), value.applyAsLong(operation));
+        }
+        return result;
+    }
+
+    private Map<String, Double> latencyMicros(ToDoubleFunction<LatencyHistogram> nanos) {
+        Map<String, Double> result = new TreeMap<>();
+        for (Operation operation : Operation.values()) {
+            result.put(operation.name(), nanos.applyAsDouble(latencies[operation.ordinal()]) / 1e3);
+        }
+        return result;
+    }
+}
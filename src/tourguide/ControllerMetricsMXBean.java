@@ -0,0 +1,27 @@
+package tourguide;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ControllerMetrics}. Maps are keyed by operation, error code, mode or tour id.
+ */
+public interface ControllerMetricsMXBean {
+
+    Map<String, Long> getCalls();
+
+    Map<String, Long> getErrors();
+
+    Map<String, Double> getLatencyP50Micros();
+
+    Map<String, Double> getLatencyP99Micros();
+
+    Map<String, Double> getLatencyMaxMicros();
+
+    Map<String, Long> getArrivalsByTour();
+
+    Map<String, Long> getSessionsByMode();
+
+    int getCatalogSize();
+
+    long getEstimatedCatalogBytes();
+}
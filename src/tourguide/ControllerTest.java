@@ -3,10 +3,28 @@
  */
 package tourguide;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -499,6 +517,1145 @@ public class ControllerTest {
         checkStatusNotOK(controller.followTour("01"));
     }
 
+    /**
+     * Tests that a follow plan holds the same waypoints, annotations and arrival checks as the
+     * tour it was compiled from.
+     */
+    @Test
+    public void followPlanMatchesTour() {
+        logger.info(makeBanner("followPlanMatchesTour"));
 
-    
+        Tour tour = new Tour("P1", "Plan", Annotation.DEFAULT);
+        for (int i = 0; i < 5; i++) {
+            tour.legAnnotations.add(ann("leg " + i));
+            tour.waypoints.add(new Waypoint(i * 40.0, i * -30.0, ann("waypoint " + i)));
+        }
+        FollowPlan plan = new FollowPlan(tour, WAYPOINT_RADIUS);
+
+        Assert.assertEquals("Plan", plan.title);
+        Assert.assertEquals(tour.waypoints.size(), plan.size);
+        Assert.assertEquals(WAYPOINT_RADIUS * WAYPOINT_RADIUS, plan.radiusSquared, 0.0);
+        for (int i = 0; i < plan.size; i++) {
+            Waypoint waypoint = tour.waypoints.get(i);
+            Assert.assertEquals(waypoint.east, plan.east(i), 0.0);
+            Assert.assertEquals(waypoint.north, plan.north(i), 0.0);
+            Assert.assertSame(waypoint.annotation, plan.waypointAnnotation(i));
+            Assert.assertSame(tour.legAnnotations.get(i), plan.legAnnotation(i));
+            for (double offset = 0.0; offset <= 2 * WAYPOINT_RADIUS; offset += 0.5) {
+                boolean at = new Displacement(offset, offset / 2).distance() <= WAYPOINT_RADIUS;
+                Assert.assertEquals(at, plan.isAt(i, waypoint.east + offset, waypoint.north + offset / 2));
+            }
+        }
+
+        // Changing the tour afterwards leaves the plan as it was compiled.
+        tour.waypoints.get(0).east = 1000.0;
+        tour.waypoints.add(new Waypoint(0.0, 0.0, Annotation.DEFAULT));
+        Assert.assertEquals(0.0, plan.east(0), 0.0);
+        Assert.assertEquals(5, plan.size);
+
+        // Publishing a tour compiles it and makes its lists read-only.
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        catalog.add(tour);
+        Tour published = catalog.get("P1");
+        Assert.assertEquals(6, published.getPlan().size);
+        Assert.assertEquals(1000.0, published.getPlan().east(0), 0.0);
+        try {
+            published.waypoints.add(new Waypoint(0.0, 0.0, Annotation.DEFAULT));
+            Assert.fail("Changed the waypoints of a published tour");
+        } catch (UnsupportedOperationException e) {
+            Assert.assertEquals(6, published.waypoints.size());
+        }
+        try {
+            published.legAnnotations.clear();
+            Assert.fail("Changed the legs of a published tour");
+        } catch (UnsupportedOperationException e) {
+            Assert.assertEquals(5, published.legAnnotations.size());
+        }
+    }
+
+    /**
+     * Tests that many sessions sharing one catalog can author and follow tours concurrently.
+     */
+    @Test
+    public void concurrentSessions() throws Exception {
+        logger.info(makeBanner("concurrentSessions"));
+
+        final TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        final int sessions = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Status>> results = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            final String id = "S" + s;
+            results.add(pool.submit(() -> {
+                Controller session = catalog.newSession();
+                session.startNewTour(id, "tour" + id, Annotation.DEFAULT);
+                for (int i = 0; i < 10; i++) {
+                    session.setLocation(0, i * WAYPOINT_SEPARATION);
+                    session.addWaypoint(Annotation.DEFAULT);
+                }
+                session.endNewTour();
+                Status status = session.followTour(id);
+                for (int i = 0; i < 10; i++) {
+                    session.setLocation(0, i * WAYPOINT_SEPARATION);
+                }
+                Assert.assertEquals(new Chunk.FollowHeader("tour" + id, 10, 10), session.getOutput().get(0));
+                return status;
+            }));
+        }
+        for (Future<Status> result : results) {
+            checkStatus(result.get());
+        }
+        pool.shutdown();
+
+        Assert.assertEquals(sessions, catalog.size());
+        Controller other = catalog.newSession();
+        checkStatus(other.showTourDetails("S0"));
+    }
+
+    private void addTourAt(String id, double east, double north) {
+        controller.startNewTour(id, "title" + id, Annotation.DEFAULT);
+        controller.setLocation(east, north);
+        controller.addWaypoint(Annotation.DEFAULT);
+        controller.setLocation(east + 100, north);
+        controller.addWaypoint(Annotation.DEFAULT);
+        checkStatus(controller.endNewTour());
+    }
+
+    @Test
+    public void browseNearbyTours() {
+        logger.info(makeBanner("browseNearbyTours"));
+
+        addTourAt("A", 0, 0);
+        addTourAt("B", 3000, 0);
+        addTourAt("C", -800, 0);
+        addTourAt("D", 50000, 50000);
+
+        controller.setLocation(1000, 0);
+        checkStatus(controller.showNearestTours(2));
+        Chunk.NearbyOverview expected = new Chunk.NearbyOverview();
+        expected.addTour("A", "titleA", 900);
+        expected.addTour("C", "titleC", 1700);
+        checkOutput(1, 0, expected);
+
+        checkStatus(controller.showToursWithin(2000));
+        expected = new Chunk.NearbyOverview();
+        expected.addTour("A", "titleA", 900);
+        expected.addTour("C", "titleC", 1700);
+        expected.addTour("B", "titleB", 2000);
+        checkOutput(1, 0, expected);
+
+        controller.setLocation(-1e6, -1e6);
+        checkStatus(controller.showToursWithin(10));
+        checkOutput(1, 0, new Chunk.NearbyOverview());
+        checkStatus(controller.showNearestTours(1));
+        expected = new Chunk.NearbyOverview();
+        expected.addTour("C", "titleC", Math.hypot(1e6 - 800, 1e6));
+        checkOutput(1, 0, expected);
+
+        // Negative sizes are refused rather than read as positive, and leave the output as it was.
+        controller.setLocation(0, 50);
+        Assert.assertEquals(new Status.Error(Status.Error.Code.BAD_RADIUS, -50.0), controller.showToursWithin(-50));
+        checkStatusNotOK(controller.showToursWithin(Double.NaN));
+        Assert.assertEquals(new Status.Error(Status.Error.Code.BAD_TOUR_COUNT, -1), controller.showNearestTours(-1));
+        checkStatusNotOK(controller.showNearestTours(0));
+        checkOutput(1, 0, expected);
+
+        checkStatus(controller.followTour("A"));
+        checkStatus(controller.endSelectedTour());
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+        for (String id : new String[]{"A", "B", "C", "D"}) {
+            overview.addIdAndTitle(id, "title" + id);
+        }
+        checkOutput(1, 0, overview);
+
+        controller.startNewTour("E", "titleE", Annotation.DEFAULT);
+        checkStatusNotOK(controller.showNearestTours(1));
+    }
+
+    @Test
+    public void followTrace() {
+        logger.info(makeBanner("followTrace"));
+
+        addOnePointTour();
+        addTwoPointTour();
+        checkStatus(controller.followTour("T2"));
+
+        double[] eastings = {0.0, -300.0, -495.0, -490.0, 200.0, 995.0, 1100.0};
+        double[] northings = {0.0, 0.0, 0.0, 0.0, 300.0, 300.0, 300.0};
+        TraceResult result = controller.setLocations(eastings, northings);
+
+        Assert.assertEquals(0, result.startStage);
+        Assert.assertEquals(2, result.endStage);
+        Assert.assertArrayEquals(new int[]{2, 5}, result.arrivals);
+        Assert.assertEquals(1100.0, result.east, 0.0);
+        checkOutput(1, 0, new Chunk.FollowHeader("Old Town", 2, 2));
+
+        result = controller.setLocations(new double[]{1000.0}, new double[]{300.0});
+        Assert.assertEquals(2, result.startStage);
+        Assert.assertEquals(0, result.arrivals.length);
+        checkOutput(2, 1, new Chunk.FollowWaypoint(ann("Holyrood Palace\n")));
+    }
+
+    private void addTour(String id, double[] eastings, double[] northings) {
+        controller.startNewTour(id, "title" + id, Annotation.DEFAULT);
+        for (int i = 0; i < eastings.length; i++) {
+            controller.setLocation(eastings[i], northings[i]);
+            checkStatus(controller.addWaypoint(Annotation.DEFAULT));
+        }
+        checkStatus(controller.endNewTour());
+    }
+
+    /**
+     * Tests that waypoints passed between two fixes are reached, in tour order only.
+     */
+    @Test
+    public void followSparseFixes() {
+        logger.info(makeBanner("followSparseFixes"));
+
+        addTour("T7", new double[]{0, 30, 60, 90, 90}, new double[]{0, 0, 0, 0, 40});
+        checkStatus(controller.followTour("T7"));
+
+        controller.setLocation(-50, 5);
+        checkOutput(3, 0, new Chunk.FollowHeader("titleT7", 0, 5));
+
+        // Passes beside the first four waypoints with no fix near any of them.
+        controller.setLocation(100, 5);
+        checkOutput(3, 0, new Chunk.FollowHeader("titleT7", 4, 5));
+
+        // Passes 17m from the last waypoint.
+        controller.setLocation(120, 100);
+        checkOutput(3, 0, new Chunk.FollowHeader("titleT7", 4, 5));
+
+        controller.setLocation(90, 45);
+        checkOutput(2, 0, new Chunk.FollowHeader("titleT7", 5, 5));
+        checkStatus(controller.endSelectedTour());
+
+        // The second waypoint lies behind the first along the path, so it is not reached on the way.
+        addTour("T8", new double[]{30, 0}, new double[]{0, 0});
+        checkStatus(controller.followTour("T8"));
+        TraceResult result = controller.setLocations(new double[]{-50, 100, 0}, new double[]{0, 0, 0});
+        Assert.assertEquals(2, result.endStage);
+        Assert.assertArrayEquals(new int[]{1, 2}, result.arrivals);
+        checkStatus(controller.endSelectedTour());
+
+        checkStatus(controller.followTour("T7"));
+        result = controller.setLocations(new double[]{-50, 100}, new double[]{5, 5});
+        Assert.assertArrayEquals(new int[]{1, 1, 1, 1}, result.arrivals);
+    }
+
+    /**
+     * Tests that FOLLOW output reports progress along the whole tour only when the catalog asks for it.
+     */
+    @Test
+    public void followProgress() {
+        logger.info(makeBanner("followProgress"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        addTour("T9", new double[]{0, 30, 30}, new double[]{0, 0, 40});
+        Assert.assertEquals(70.0, catalog.get("T9").getPlan().length, 1e-9);
+        Assert.assertEquals(30.0, catalog.get("T9").getPlan().distanceTo(1), 1e-9);
+
+        checkStatus(controller.followTour("T9"));
+        controller.setLocation(0, 0);
+        checkOutput(4, 0, new Chunk.FollowHeader("titleT9", 1, 3));
+
+        catalog.setFollowProgress(true);
+        checkOutput(5, 4, new Chunk.FollowProgress(0, 70, 0));
+        controller.setLocation(0, 1);
+        checkOutput(5, 4, new Chunk.FollowProgress(0, Math.sqrt(901) + 40, 0));
+
+        controller.setLocation(15, 0);
+        checkOutput(4, 3, new Chunk.FollowProgress(15, 55, 100.0 * 15 / 70));
+
+        controller.setLocation(30, 0);
+        controller.setLocation(30, 40);
+        checkOutput(3, 2, new Chunk.FollowProgress(70, 0, 100));
+    }
+
+    /**
+     * Tests that FOLLOW output warns when a fix strays outside the corridor around the active leg.
+     */
+    @Test
+    public void followOffRoute() {
+        logger.info(makeBanner("followOffRoute"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        addTour("T10", new double[]{0, 100, 100}, new double[]{0, 0, 100});
+        FollowPlan plan = catalog.get("T10").getPlan();
+        Assert.assertEquals(2500.0, plan.distanceSquaredFromLeg(1, -30, 40), 1e-9);
+        Assert.assertEquals(2500.0, plan.distanceSquaredFromLeg(1, 130, 40), 1e-9);
+        Assert.assertEquals(49.0, plan.distanceSquaredFromLeg(1, 50, -7), 1e-9);
+
+        catalog.setCorridorWidth(20);
+        checkStatus(controller.followTour("T10"));
+        controller.setLocation(-50, 50); // No leg to stray from before the first waypoint.
+        checkOutput(3, 0, new Chunk.FollowHeader("titleT10", 0, 3));
+        controller.setLocation(0, 0);
+        checkOutput(4, 0, new Chunk.FollowHeader("titleT10", 1, 3));
+
+        controller.setLocation(50, 15);
+        checkOutput(3, 0, new Chunk.FollowHeader("titleT10", 1, 3));
+        controller.setLocation(50, 30);
+        checkOutput(4, 3, new Chunk.OffRoute(20));
+
+        controller.setLocations(new double[]{50, 60}, new double[]{0, -25});
+        checkOutput(4, 3, new Chunk.OffRoute(20));
+
+        catalog.setCorridorWidth(30);
+        checkOutput(3, 0, new Chunk.FollowHeader("titleT10", 1, 3));
+        catalog.setCorridorWidth(0);
+        controller.setLocation(60, -26);
+        checkOutput(3, 0, new Chunk.FollowHeader("titleT10", 1, 3));
+    }
+
+    private static Chunk.BrowseOverview overviewOf(String nextCursor, String... idsAndTitles) {
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+        for (int i = 0; i < idsAndTitles.length; i += 2) {
+            overview.addIdAndTitle(idsAndTitles[i], idsAndTitles[i + 1]);
+        }
+        overview.nextCursor = nextCursor;
+        return overview;
+    }
+
+    /**
+     * Tests that searches match whole words or prefixes of every query term, ranked by where they appear.
+     */
+    @Test
+    public void searchTours() {
+        logger.info(makeBanner("searchTours"));
+
+        controller.startNewTour("S1", "Castle walk", new Annotation("Old town"));
+        controller.setLocation(0, 0);
+        checkStatus(controller.addWaypoint(new Annotation("Castle gate")));
+        controller.setLocation(100, 0);
+        checkStatus(controller.addWaypoint(new Annotation("Market")));
+        checkStatus(controller.endNewTour());
+        controller.startNewTour("S2", "Market tour", new Annotation("Castles and markets"));
+        controller.setLocation(0, 0);
+        checkStatus(controller.addWaypoint(Annotation.DEFAULT));
+        checkStatus(controller.endNewTour());
+        controller.startNewTour("S3", "River walk", Annotation.DEFAULT);
+        controller.setLocation(0, 0);
+        checkStatus(controller.addWaypoint(Annotation.DEFAULT));
+        checkStatus(controller.endNewTour());
+
+        checkStatus(controller.searchTours("castle"));
+        checkOutput(1, 0, overviewOf(null, "S1", "Castle walk"));
+        checkStatus(controller.searchTours("CAST*"));
+        checkOutput(1, 0, overviewOf(null, "S1", "Castle walk", "S2", "Market tour"));
+        checkStatus(controller.searchTours("market"));
+        checkOutput(1, 0, overviewOf(null, "S2", "Market tour", "S1", "Castle walk"));
+        checkStatus(controller.searchTours("market, walk"));
+        checkOutput(1, 0, overviewOf(null, "S1", "Castle walk"));
+        checkStatus(controller.searchTours("default"));
+        checkOutput(1, 0, overviewOf(null));
+
+        checkStatus(controller.searchTours("wal*", null, 1));
+        checkOutput(1, 0, overviewOf("S1", "S1", "Castle walk"));
+        checkStatus(controller.searchTours("wal*", "S1", 1));
+        checkOutput(1, 0, overviewOf(null, "S3", "River walk"));
+
+        checkStatus(controller.searchTours("walk"));
+        controller.startNewTour("S3", "Lake stroll", Annotation.DEFAULT);
+        controller.setLocation(0, 0);
+        checkStatus(controller.addWaypoint(Annotation.DEFAULT));
+        checkStatus(controller.endNewTour());
+        checkStatus(controller.searchTours("walk"));
+        checkOutput(1, 0, overviewOf(null, "S1", "Castle walk"));
+
+        Status status = controller.searchTours(" *! ");
+        Assert.assertEquals(Status.Error.Code.NO_SEARCH_TERMS, ((Status.Error) status).getCode());
+    }
+
+    /**
+     * Tests that a partitioned catalog spreads tours evenly, routes lookups and merges queries
+     * across nodes, moves only the new node's share of tours when a node joins, and keeps its
+     * version moving forward when a node leaves.
+     */
+    @Test
+    public void partitionedCatalog() throws Exception {
+        logger.info(makeBanner("partitionedCatalog"));
+
+        PartitionedCatalog catalog = new PartitionedCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        catalog.addNode("A");
+        catalog.addNode("B");
+        catalog.addNode("C");
+        List<Tour> tours = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            Tour tour = new Tour(String.format("T%04d", i), "Tour " + i, Annotation.DEFAULT);
+            tour.waypoints.add(new Waypoint(i * 100.0, 0.0, Annotation.DEFAULT));
+            tour.legAnnotations.add(Annotation.DEFAULT);
+            tours.add(tour);
+        }
+        catalog.addAll(tours);
+        Assert.assertEquals(1200, catalog.size());
+        Map<String, String> owners = new HashMap<>();
+        for (String name : catalog.nodeNames()) {
+            int size = catalog.node(name).size();
+            Assert.assertTrue(name + " holds " + size, size > 250 && size < 550);
+            for (Tour tour : catalog.node(name).tours()) {
+                Assert.assertEquals(name, catalog.nodeOf(tour.id));
+                owners.put(tour.id, name);
+            }
+        }
+
+        int moved = catalog.addNode("D");
+        Assert.assertTrue("Moved " + moved, moved > 150 && moved < 450);
+        Assert.assertEquals(moved, catalog.node("D").size());
+        Assert.assertEquals(1200, catalog.size());
+        int changed = 0;
+        for (Tour tour : tours) {
+            String owner = catalog.nodeOf(tour.id);
+            Assert.assertSame(tour, catalog.node(owner).get(tour.id));
+            if (!owner.equals(owners.get(tour.id))) {
+                Assert.assertEquals("D", owner);
+                changed++;
+            }
+        }
+        Assert.assertEquals(moved, changed);
+
+        controller = catalog.newSession();
+        checkStatus(controller.showToursOverview(null, 3));
+        checkOutput(1, 0, overviewOf("T0002", "T0000", "Tour 0", "T0001", "Tour 1", "T0002", "Tour 2"));
+        checkStatus(controller.showToursOverview("T0002", 2));
+        checkOutput(1, 0, overviewOf("T0004", "T0003", "Tour 3", "T0004", "Tour 4"));
+        checkStatus(controller.searchTours("tour", "T0002", 2));
+        checkOutput(1, 0, overviewOf("T0004", "T0003", "Tour 3", "T0004", "Tour 4"));
+        checkStatus(controller.searchTours("7*", null, 2));
+        checkOutput(1, 0, overviewOf("T0070", "T0007", "Tour 7", "T0070", "Tour 70"));
+
+        controller.setLocation(50120, 0);
+        checkStatus(controller.showNearestTours(2));
+        Chunk.NearbyOverview nearby = new Chunk.NearbyOverview();
+        nearby.addTour("T0501", "Tour 501", 20);
+        nearby.addTour("T0502", "Tour 502", 80);
+        checkOutput(1, 0, nearby);
+
+        checkStatus(controller.showTourDetails("T0501"));
+        checkOutput(1, 0, new Chunk.BrowseDetails("T0501", "Tour 501", Annotation.DEFAULT));
+        checkStatus(controller.followTour("T0501"));
+        controller.setLocation(50100, 0);
+        checkOutput(2, 0, new Chunk.FollowHeader("Tour 501", 1, 1));
+        checkStatus(controller.endSelectedTour());
+
+        Path file = Files.createTempFile("partitioned", ".catalog");
+        try {
+            catalog.save(file);
+            long version = catalog.version();
+            Assert.assertTrue(catalog.removeNode("A") > 0);
+            Assert.assertNull(catalog.node("A"));
+            Assert.assertEquals(1200, catalog.size());
+            Assert.assertTrue(catalog.version() > version);
+
+            // The inherited mutators are routed to the owning node.
+            Tour moving = catalog.get("T0501");
+            Assert.assertSame(moving, catalog.remove("T0501"));
+            Assert.assertNull(catalog.get("T0501"));
+            Assert.assertEquals(1199, catalog.size());
+            catalog.adopt(moving);
+            Assert.assertSame(moving, catalog.node(catalog.nodeOf("T0501")).get("T0501"));
+            Assert.assertEquals(1200, catalog.size());
+            PartitionedCatalog loaded = new PartitionedCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            loaded.addNode("E");
+            loaded.addNode("F");
+            Assert.assertEquals(1200, loaded.load(file));
+            Assert.assertEquals("Tour 1199", loaded.get("T1199").title);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Tests that listeners see mode changes, tour additions and arrivals, in order.
+     */
+    @Test
+    public void listenerEvents() throws Exception {
+        logger.info(makeBanner("listenerEvents"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        List<String> events = new ArrayList<>();
+        TourListener listener = event -> events.add(event.toString());
+        controller.addListener(listener, null);
+
+        addTour("T7", new double[]{0, 30}, new double[]{0, 0});
+        checkStatus(controller.followTour("T7"));
+        controller.setLocation(-50, 5);
+        controller.setLocation(-40, 5);
+        controller.setLocation(100, 5);
+        Assert.assertEquals(Arrays.asList(
+                "ModeChanged(BROWSE -> CREATE)",
+                "TourAdded(T7, titleT7)",
+                "ModeChanged(CREATE -> BROWSE)",
+                "ModeChanged(BROWSE -> FOLLOW)",
+                "WaypointReached(T7, 0, e:100.0, n:5.0)",
+                "WaypointReached(T7, 1, e:100.0, n:5.0)",
+                "TourFinished(T7)"), events);
+
+        // Tours added by other sessions are reported too, through the executor.
+        events.clear();
+        List<Runnable> tasks = new ArrayList<>();
+        controller.removeListener(listener);
+        controller.addListener(listener, tasks::add);
+        Controller other = catalog.newSession();
+        other.startNewTour("T9", "Other", Annotation.DEFAULT);
+        other.addWaypoint(Annotation.DEFAULT);
+        checkStatus(other.endNewTour());
+        Assert.assertEquals(0, events.size());
+        tasks.forEach(Runnable::run);
+        Assert.assertEquals(Arrays.asList("TourAdded(T9, Other)"), events);
+
+        controller.removeListener(listener);
+        controller.setLocation(0, 0);
+        checkStatus(controller.endSelectedTour());
+        Assert.assertEquals(1, tasks.size());
+
+        // The catalog doesn't keep a session with listeners reachable.
+        other.addListener(listener, null);
+        WeakReference<Controller> dropped = new WeakReference<>(other);
+        other = null;
+        for (int i = 0; i < 100 && dropped.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(dropped.get());
+    }
+
+    /**
+     * Tests that a coalescing stream applies only the latest fix under load and sends a slow
+     * subscriber only the latest output, when it asks for one, and never before its onSubscribe returns.
+     */
+    @Test
+    public void locationStream() {
+        logger.info(makeBanner("locationStream"));
+
+        addTour("T7", new double[]{0, 30}, new double[]{0, 0});
+        List<Runnable> tasks = new ArrayList<>();
+        LocationStream stream = new LocationStream(controller, tasks::add, 0);
+        long[] requested = new long[1];
+        stream.onSubscribe(new Flow.Subscription() {
+            public void request(long n) { requested[0] += n; }
+            public void cancel() {}
+        });
+        Assert.assertEquals(Long.MAX_VALUE, requested[0]);
+
+        List<List<Chunk>> received = new ArrayList<>();
+        Flow.Subscription[] output = new Flow.Subscription[1];
+        stream.subscribe(new Flow.Subscriber<List<Chunk>>() {
+            public void onSubscribe(Flow.Subscription subscription) { output[0] = subscription; }
+            public void onNext(List<Chunk> item) { received.add(item); }
+            public void onError(Throwable throwable) { Assert.fail(throwable.toString()); }
+            public void onComplete() { received.add(null); }
+        });
+
+        stream.execute(c -> c.followTour("T7"));
+        stream.onNext(new Location(-50, 0));
+        stream.onNext(new Location(-100, 0));
+        stream.onNext(new Location(0, 0));
+        Assert.assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+
+        // Nothing is sent until the subscriber asks, and then only the latest output.
+        stream.onNext(new Location(30, 0));
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+        Assert.assertEquals(0, received.size());
+        output[0].request(5);
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(new Chunk.FollowHeader("titleT7", 2, 2), received.get(0).get(0));
+
+        stream.onComplete();
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+        Assert.assertEquals(2, received.size());
+        Assert.assertNull(received.get(1));
+
+        // A buffering stream applies every fix and only requests as many as it has room for.
+        checkStatus(controller.endSelectedTour());
+        stream = new LocationStream(controller, tasks::add, 2);
+        requested[0] = 0;
+        stream.onSubscribe(new Flow.Subscription() {
+            public void request(long n) { requested[0] += n; }
+            public void cancel() {}
+        });
+        Assert.assertEquals(2, requested[0]);
+        stream.onNext(new Location(1, 1));
+        stream.onNext(new Location(2, 2));
+        tasks.remove(0).run();
+        Assert.assertEquals(4, requested[0]);
+
+        // A failing command ends the stream with its error, and a failing subscriber gets the error of its own.
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            boolean throwOnNext = i == 1;
+            stream.subscribe(new Flow.Subscriber<List<Chunk>>() {
+                public void onSubscribe(Flow.Subscription subscription) { subscription.request(1); }
+                public void onNext(List<Chunk> item) { if (throwOnNext) throw new IllegalStateException("onNext"); }
+                public void onError(Throwable throwable) { errors.add(throwable); }
+                public void onComplete() { Assert.fail("Completed"); }
+            });
+        }
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+        Assert.assertEquals("onNext", errors.get(0).getMessage());
+        stream.execute(c -> { throw new IllegalStateException("command"); });
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+        Assert.assertEquals(2, errors.size());
+        Assert.assertEquals("command", errors.get(1).getMessage());
+
+        // Nothing reaches a subscriber until its onSubscribe has returned, even if the session
+        // publishes and finishes from inside it.
+        LocationStream direct = new LocationStream(controller, Runnable::run, 0);
+        List<String> signals = new ArrayList<>();
+        direct.subscribe(new Flow.Subscriber<List<Chunk>>() {
+            public void onSubscribe(Flow.Subscription subscription) {
+                signals.add("onSubscribe");
+                subscription.request(Long.MAX_VALUE);
+                direct.onComplete();
+                signals.add("returned");
+            }
+            public void onNext(List<Chunk> item) { signals.add("onNext"); }
+            public void onError(Throwable throwable) { signals.add("onError"); }
+            public void onComplete() { signals.add("onComplete"); }
+        });
+        Assert.assertEquals(List.of("onSubscribe", "returned", "onNext", "onComplete"), signals);
+    }
+
+    /**
+     * Tests that tours share one annotation object per distinct text.
+     */
+    @Test
+    public void annotationsInterned() {
+        logger.info(makeBanner("annotationsInterned"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        for (String id : new String[]{"T7", "T8"}) {
+            controller.setLocation(0, 0);
+            controller.startNewTour(id, "title" + id, ann("A walk"));
+            controller.addLeg(ann("Follow the path"));
+            controller.addWaypoint(ann("Gate"));
+            controller.setLocation(0, 100);
+            controller.addWaypoint(Annotation.DEFAULT);
+            checkStatus(controller.endNewTour());
+        }
+        Tour first = catalog.get("T7"), second = catalog.get("T8");
+        Assert.assertSame(first.annotation, second.annotation);
+        Assert.assertSame(first.legAnnotations.get(0), second.legAnnotations.get(0));
+        Assert.assertSame(Annotation.of("Gate"), second.waypoints.get(0).annotation);
+        Assert.assertSame(Annotation.DEFAULT, second.legAnnotations.get(1));
+
+        Assert.assertEquals(ann("Gate").hashCode(), Annotation.of("Gate").hashCode());
+        Assert.assertTrue(ann("DEFAULT").isDefault());
+        Assert.assertFalse(Annotation.of("Gate").isDefault());
+    }
+
+    /**
+     * Tests that common errors are preallocated and that errors still compare by message.
+     */
+    @Test
+    public void errorCodes() {
+        logger.info(makeBanner("errorCodes"));
+
+        Status first = controller.addWaypoint(Annotation.DEFAULT);
+        Assert.assertSame(first, controller.addLeg(Annotation.DEFAULT));
+        Assert.assertSame(Status.Error.Code.WRONG_MODE, ((Status.Error) first).getCode());
+        Assert.assertEquals(new Status.Error("ERROR: Incorrect mode, expected CREATE, got BROWSE."), first);
+        Assert.assertSame(Status.Error.TOUR_NOT_FOUND, controller.followTour("T9"));
+        Assert.assertSame(Status.Error.NO_TOUR_ID, controller.startNewTour(null, "title", Annotation.DEFAULT));
+        checkStatusNotOK(controller.endNewTour()); // Still browsing.
+
+        Status tooSmall = controller.showToursOverview(null, 0);
+        Assert.assertEquals(new Status.Error(Status.Error.Code.BAD_PAGE_SIZE, 0), tooSmall);
+        Assert.assertEquals("Status.Error(ERROR: Page size must be positive, got 0.)", tooSmall.toString());
+    }
+
+    /**
+     * Tests that sessions of a catalog with metrics record their calls, errors, arrivals and modes.
+     */
+    @Test
+    public void controllerMetrics() throws Exception {
+        logger.info(makeBanner("controllerMetrics"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        ControllerMetrics metrics = ControllerMetrics.attach(catalog);
+        controller = catalog.newSession();
+        addTour("T7", new double[]{0, 30}, new double[]{0, 0});
+        checkStatusNotOK(controller.addLeg(Annotation.DEFAULT));
+        checkStatus(controller.followTour("T7"));
+        for (int i = 0; i < 100; i++) {
+            controller.setLocation(i, 0);
+        }
+
+        ControllerMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(102L, (long) snapshot.calls.get(ControllerMetrics.Operation.SET_LOCATION));
+        Assert.assertEquals(2L, (long) snapshot.calls.get(ControllerMetrics.Operation.ADD_WAYPOINT));
+        Assert.assertEquals(1L, (long) snapshot.errors.get(Status.Error.Code.WRONG_MODE));
+        Assert.assertEquals(1L, snapshot.latencies.get(ControllerMetrics.Operation.SET_LOCATION).count());
+        Assert.assertEquals(2L, (long) snapshot.arrivalsByTour.get("T7"));
+        Assert.assertEquals(1L, (long) snapshot.sessionsByMode.get(Controller.MODE.FOLLOW));
+        Assert.assertEquals(0L, (long) snapshot.sessionsByMode.get(Controller.MODE.BROWSE));
+        Assert.assertEquals(1, snapshot.catalogSize);
+        Assert.assertEquals(ControllerMetrics.TOUR_BYTES + 2 * ControllerMetrics.WAYPOINT_BYTES,
+                snapshot.estimatedCatalogBytes);
+
+        // A closed session is no longer counted in any mode.
+        controller.close();
+        Assert.assertEquals(0L, (long) metrics.snapshot().sessionsByMode.get(Controller.MODE.FOLLOW));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.register("controllerMetrics");
+        try {
+            Assert.assertEquals(1, server.getAttribute(name, "CatalogSize"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    /**
+     * Tests that the asynchronous handler writes one JSON line per record it doesn't drop.
+     */
+    @Test
+    public void asyncLogHandler() throws Exception {
+        logger.info(makeBanner("asyncLogHandler"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncLogHandler handler = new AsyncLogHandler(bytes, 4);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record " + i + "\n\"quoted\""));
+        }
+        handler.close();
+        handler.publish(new LogRecord(Level.INFO, "after close"));
+
+        // flush returns once the records so far are written out, even to an idle writer.
+        ByteArrayOutputStream flushed = new ByteArrayOutputStream();
+        AsyncLogHandler idle = new AsyncLogHandler(flushed, 16);
+        Thread.sleep(20);
+        for (int i = 0; i < 3; i++) {
+            idle.publish(new LogRecord(Level.INFO, "idle " + i));
+        }
+        idle.flush();
+        Assert.assertEquals(3, flushed.toString("UTF-8").split("\n").length);
+        idle.close();
+
+        String[] lines = bytes.toString("UTF-8").split("\n");
+        Assert.assertEquals(101, lines.length + handler.getDroppedCount());
+        Assert.assertTrue(lines[0], lines[0].matches(
+                "\\{\"time\":\\d+,\"level\":\"INFO\",\"thread\":\\d+,\"message\":\"record 0\\\\n\\\\\"quoted\\\\\"\"}"));
+    }
+
+    /**
+     * Tests that queries running alongside bulk additions never see part of one.
+     */
+    @Test
+    public void addAllAtomic() throws Exception {
+        logger.info(makeBanner("addAllAtomic"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        int batchSize = 500, batches = 20;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<String>> reader = executor.submit(() -> {
+                List<String> partial = new ArrayList<>();
+                int seen = 0;
+                while (seen < batches * batchSize) {
+                    seen = catalog.size();
+                    int[] counts = {
+                            seen,
+                            catalog.toursAfter(null, Integer.MAX_VALUE).size(),
+                            catalog.toursWithin(0, 0, 1000).size(),
+                            catalog.search("batch", null, Integer.MAX_VALUE).size()};
+                    for (int count : counts) {
+                        if (count % batchSize != 0 && partial.size() < 10) partial.add(Arrays.toString(counts));
+                    }
+                }
+                return partial;
+            });
+            for (int b = 0; b < batches; b++) {
+                List<Tour> batch = new ArrayList<>(batchSize);
+                for (int i = 0; i < batchSize; i++) {
+                    Tour tour = new Tour("B" + b + "-" + i, "Batch " + b, Annotation.DEFAULT);
+                    tour.legAnnotations.add(Annotation.DEFAULT);
+                    tour.waypoints.add(new Waypoint(i % 100, b, Annotation.DEFAULT));
+                    batch.add(tour);
+                }
+                catalog.addAll(batch);
+                Thread.yield();
+            }
+            Assert.assertEquals(Collections.emptyList(), reader.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a bulk import publishes every tour, or none if any tour breaks the authoring rules.
+     */
+    @Test
+    public void bulkImport() throws Exception {
+        logger.info(makeBanner("bulkImport"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        StringBuilder feed = new StringBuilder("# Partner feed\n");
+        for (int i = 0; i < 200; i++) {
+            feed.append("TOUR,I").append(i).append(",\"Walk, number ").append(i).append("\",\n")
+                    .append("WAYPOINT,0,0,Start\n")
+                    .append("LEG,Follow the path\n")
+                    .append("WAYPOINT,").append(i + 100).append(",0,\"The \"\"end\"\"\\n\"\n")
+                    .append("END\n");
+        }
+        checkStatus(new TourImporter(catalog).importTours(new StringReader(feed.toString())));
+        Assert.assertEquals(200, catalog.size());
+        Assert.assertEquals(1, catalog.toursWithin(199, 0, 0.5).size());
+
+        checkStatus(controller.followTour("I7"));
+        controller.setLocation(0, 0);
+        controller.setLocation(107, 0);
+        checkOutput(2, 1, new Chunk.FollowWaypoint(ann("The \"end\"\n")));
+        checkOutput(2, 0, new Chunk.FollowHeader("Walk, number 7", 2, 2));
+        checkStatus(controller.endSelectedTour());
+
+        // The second waypoint is too close, so nothing is imported.
+        Status status = new TourImporter(catalog).importTours(new StringReader(
+                "TOUR,J1,Fine,\nWAYPOINT,0,0,\nEND\nTOUR,J2,Bad,\nWAYPOINT,0,0,\nWAYPOINT,0,10,\nEND\n"));
+        Assert.assertEquals(Status.Error.Code.IMPORT_REJECTED, ((Status.Error) status).getCode());
+        Assert.assertTrue(status.toString(), status.toString().contains("line 6: Waypoint"));
+        Assert.assertNull(catalog.get("J1"));
+        Assert.assertEquals(200, catalog.size());
+
+        // Tours without an id, and waypoints that aren't finite points, are refused by both paths.
+        for (String bad : new String[]{"TOUR,,Untitled,\nWAYPOINT,0,0,\nEND\n",
+                "TOUR,J3,Lost,\nWAYPOINT,NaN,0,\nEND\n",
+                "TOUR,J4,Far,\nWAYPOINT,0,Infinity,\nEND\n"}) {
+            status = new TourImporter(catalog).importTours(new StringReader(bad));
+            Assert.assertEquals(bad, Status.Error.Code.IMPORT_REJECTED, ((Status.Error) status).getCode());
+        }
+        Assert.assertEquals(200, catalog.size());
+        Assert.assertEquals(Status.Error.NO_TOUR_ID, controller.startNewTour("", "Untitled", Annotation.DEFAULT));
+        checkStatus(controller.startNewTour("J5", "Lost", Annotation.DEFAULT));
+        controller.setLocation(Double.NaN, 0);
+        Assert.assertEquals(new Status.Error(Status.Error.Code.BAD_LOCATION, Double.NaN, 0.0),
+                controller.addWaypoint(Annotation.DEFAULT));
+    }
+
+    /**
+     * Tests that unchanged output is reused and that every relevant change is still reflected.
+     */
+    @Test
+    public void outputCaching() {
+        logger.info(makeBanner("outputCaching"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        addOnePointTour();
+        List<Chunk> first = controller.getOutput();
+        Assert.assertSame(first, controller.getOutput());
+        controller.setLocation(1, 1);
+        Assert.assertSame(first, controller.getOutput());
+
+        Controller other = catalog.newSession();
+        other.startNewTour("T9", "Other", Annotation.DEFAULT);
+        other.addWaypoint(Annotation.DEFAULT);
+        checkStatus(other.endNewTour());
+        Chunk.BrowseOverview overview = (Chunk.BrowseOverview) controller.getOutput().get(0);
+        Assert.assertTrue(overview.overviewLines.contains(new Chunk.OverviewLine("T9", "Other")));
+
+        checkStatus(controller.followTour("T1"));
+        controller.setLocation(300, -400);
+        List<Chunk> following = controller.getOutput();
+        Assert.assertSame(following, controller.getOutput());
+        controller.setLocation(300, -450);
+        Assert.assertNotSame(following, controller.getOutput());
+        checkOutput(3, 2, new Chunk.FollowBearing(180.0, 50.0));
+    }
+
+    /**
+     * Tests that the tours overview can be paged with a cursor and a limit.
+     */
+    @Test
+    public void browseOverviewPages() {
+        logger.info(makeBanner("browseOverviewPages"));
+
+        for (String id : new String[]{"T4", "T2", "T5", "T1", "T3"}) {
+            controller.startNewTour(id, "title" + id, Annotation.DEFAULT);
+            controller.addWaypoint(Annotation.DEFAULT);
+            checkStatus(controller.endNewTour());
+        }
+
+        Chunk.BrowseOverview expected = new Chunk.BrowseOverview();
+        for (int i = 1; i <= 5; i++) {
+            expected.addIdAndTitle("T" + i, "titleT" + i);
+        }
+        checkOutput(1, 0, expected);
+
+        checkStatus(controller.showToursOverview(null, 2));
+        expected = new Chunk.BrowseOverview();
+        expected.addIdAndTitle("T1", "titleT1");
+        expected.addIdAndTitle("T2", "titleT2");
+        expected.nextCursor = "T2";
+        checkOutput(1, 0, expected);
+
+        checkStatus(controller.showToursOverview("T2", 2));
+        expected = new Chunk.BrowseOverview();
+        expected.addIdAndTitle("T3", "titleT3");
+        expected.addIdAndTitle("T4", "titleT4");
+        expected.nextCursor = "T4";
+        checkOutput(1, 0, expected);
+
+        checkStatus(controller.showToursOverview("T4", 2));
+        expected = new Chunk.BrowseOverview();
+        expected.addIdAndTitle("T5", "titleT5");
+        checkOutput(1, 0, expected);
+
+        checkStatusNotOK(controller.showToursOverview(null, 0));
+    }
+
+    /**
+     * Tests that a catalog survives a save and load, and that a corrupt file is rejected.
+     */
+    @Test
+    public void catalogFile() throws Exception {
+        logger.info(makeBanner("catalogFile"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        addOnePointTour();
+        addTwoPointTour();
+
+        Path path = Files.createTempFile("tours", ".tgc");
+        try {
+            catalog.save(path);
+            TourCatalog reopened = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            Assert.assertEquals(2, reopened.load(path));
+            controller = reopened.newSession();
+
+            Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+            overview.addIdAndTitle("T1", "Informatics at UoE");
+            overview.addIdAndTitle("T2", "Old Town");
+            checkOutput(1, 0, overview);
+            for (Tour tour : reopened.tours()) {
+                Assert.assertFalse(tour.isLoaded());
+            }
+            // Tours count in the estimated size as index entries until they are decoded.
+            Assert.assertEquals(2 * ControllerMetrics.TOUR_BYTES, reopened.estimatedBytes());
+
+            checkStatus(controller.showTourDetails("T1"));
+            Assert.assertEquals(2 * ControllerMetrics.TOUR_BYTES + ControllerMetrics.WAYPOINT_BYTES,
+                    reopened.estimatedBytes());
+            checkOutput(1, 0, new Chunk.BrowseDetails(
+                    "T1", "Informatics at UoE", ann("The Informatics Forum and Appleton Tower\n")));
+
+            checkStatus(controller.followTour("T2"));
+            controller.setLocation(-490.0, 0.0);
+            checkOutput(4, 1, new Chunk.FollowWaypoint(ann("Edinburgh Castle\n")));
+            checkOutput(4, 2, new Chunk.FollowLeg(ann("Royal Mile\n")));
+
+            checkStatus(controller.endSelectedTour());
+            controller.setLocation(300, -500);
+            checkStatus(controller.showNearestTours(1));
+            Chunk.NearbyOverview nearby = new Chunk.NearbyOverview();
+            nearby.addTour("T1", "Informatics at UoE", 0);
+            checkOutput(1, 0, nearby);
+
+            // Missing titles and annotations survive a round trip.
+            TourCatalog sparse = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            Tour untitled = new Tour("T3", null, null);
+            untitled.waypoints.add(new Waypoint(0, 0, null));
+            untitled.legAnnotations.add(null);
+            sparse.add(untitled);
+            sparse.save(path);
+            TourCatalog sparseReopened = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            Assert.assertEquals(1, sparseReopened.load(path));
+            Tour decoded = sparseReopened.get("T3");
+            Assert.assertNull(decoded.title);
+            Assert.assertNull(decoded.annotation);
+            Assert.assertNull(decoded.waypoints.get(0).annotation);
+            Assert.assertNull(decoded.legAnnotations.get(0));
+
+            // A truncated file is reported as an IOException, and adds no tours.
+            catalog.save(path);
+            byte[] bytes = Files.readAllBytes(path);
+            Files.write(path, Arrays.copyOf(bytes, 30));
+            TourCatalog truncated = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            try {
+                truncated.load(path);
+                Assert.fail("Loaded a truncated file");
+            } catch (IOException e) {
+                Assert.assertEquals(0, truncated.size());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Tests that a tour with corrupt details fails its own lookups without changing it, and is
+     * left out of the nearby and search queries rather than failing them.
+     */
+    @Test
+    public void catalogFileCorruptDetails() throws Exception {
+        logger.info(makeBanner("catalogFileCorruptDetails"));
+
+        TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        controller = catalog.newSession();
+        addOnePointTour();
+        addTwoPointTour();
+        Path path = Files.createTempFile("corrupt", ".catalog");
+        try {
+            catalog.save(path);
+            // Cut into the last leg annotation of T2, whose details come last in the file.
+            byte[] bytes = Files.readAllBytes(path);
+            Files.write(path, Arrays.copyOf(bytes, bytes.length - 2));
+
+            TourCatalog reopened = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            Assert.assertEquals(2, reopened.load(path));
+            Tour corrupt = null;
+            for (Tour tour : reopened.tours()) {
+                if (tour.id.equals("T2")) corrupt = tour;
+            }
+            for (int i = 0; i < 2; i++) {
+                try {
+                    reopened.get("T2");
+                    Assert.fail("Decoded a corrupt tour");
+                } catch (UncheckedIOException e) {
+                    Assert.assertFalse(corrupt.isLoaded());
+                    Assert.assertTrue(corrupt.waypoints.isEmpty());
+                    Assert.assertTrue(corrupt.legAnnotations.isEmpty());
+                }
+            }
+
+            controller = reopened.newSession();
+            Chunk.NearbyOverview nearby = new Chunk.NearbyOverview();
+            nearby.addTour("T1", "Informatics at UoE", 0);
+            for (int i = 0; i < 2; i++) {
+                controller.setLocation(300, -500);
+                checkStatus(controller.showNearestTours(2));
+                checkOutput(1, 0, nearby);
+                checkStatus(controller.showToursOverview());
+            }
+            Assert.assertEquals(Collections.singletonList(reopened.get("T1")), reopened.search("informatics", null, 10));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Tests that a journal restores finished tours and drafts after a crash, and refuses authoring once closed.
+     */
+    @Test
+    public void journalReplay() throws Exception {
+        logger.info(makeBanner("journalReplay"));
+
+        Path path = Files.createTempFile("tours", ".journal");
+        try {
+            TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            TourJournal journal = TourJournal.open(path, catalog, 100, 5, false);
+            controller = catalog.newSession();
+            addTwoPointTour();
+            checkStatus(controller.startNewTour("T3", "Draft", ann("Unfinished\n")));
+            controller.setLocation(0, 0);
+            checkStatus(controller.addWaypoint(ann("First")));
+            checkStatus(controller.addLeg(ann("Onwards")));
+            journal.close();
+
+            // Simulate a crash that tore the last record.
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(new byte[]{2, 0, 0}));
+            }
+
+            TourCatalog recovered = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            journal = TourJournal.open(path, recovered, 100, 5, true);
+            Assert.assertEquals(1, recovered.size());
+            Assert.assertEquals(1, journal.drafts().size());
+            controller = recovered.newSession();
+            checkStatus(controller.followTour("T2"));
+            checkOutput(3, 0, new Chunk.FollowHeader("Old Town", 0, 2));
+            checkStatus(controller.endSelectedTour());
+
+            checkStatus(controller.resumeNewTour(journal.drafts().get(0)));
+            checkOutput(1, 0, new Chunk.CreateHeader("Draft", 2, 1));
+            controller.setLocation(0, 100);
+            checkStatus(controller.addWaypoint(ann("Second")));
+            checkStatus(controller.endNewTour());
+            journal.close();
+
+            TourCatalog again = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            journal = TourJournal.open(path, again, 100, 5, false);
+            Assert.assertEquals(2, again.size());
+            Assert.assertTrue(journal.drafts().isEmpty());
+            Assert.assertEquals(ann("Onwards"), again.get("T3").legAnnotations.get(1));
+            controller = again.newSession();
+            journal.close();
+
+            // A journal that can no longer record refuses authoring and leaves the session browsing.
+            Status status = controller.startNewTour("T4", "Late", ann(""));
+            Assert.assertEquals(Status.Error.Code.JOURNAL_FAILED, ((Status.Error) status).getCode());
+            checkStatus(controller.showTourDetails("T3"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Tests that sessions authoring tours with the same id at once replay independently, and that
+     * only resuming a draft supersedes the session it came from.
+     */
+    @Test
+    public void journalSharedIds() throws Exception {
+        logger.info(makeBanner("journalSharedIds"));
+
+        Path path = Files.createTempFile("shared", ".journal");
+        try {
+            TourCatalog catalog = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            TourJournal journal = TourJournal.open(path, catalog, 100, 5, false);
+            Controller first = catalog.newSession();
+            Controller second = catalog.newSession();
+            checkStatus(first.startNewTour("T5", "First", Annotation.DEFAULT));
+            checkStatus(second.startNewTour("T5", "Second", Annotation.DEFAULT));
+            first.setLocation(0, 0);
+            checkStatus(first.addWaypoint(ann("First 1")));
+            second.setLocation(0, 0);
+            checkStatus(second.addWaypoint(ann("Second 1")));
+            first.setLocation(0, 100);
+            checkStatus(first.addWaypoint(ann("First 2")));
+            checkStatus(first.endNewTour());
+            journal.close();
+
+            TourCatalog recovered = new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            journal = TourJournal.open(path, recovered, 100, 5, false);
+            Assert.assertEquals(2, recovered.get("T5").waypoints.size());
+            Assert.assertEquals(1, journal.drafts().size());
+            Assert.assertEquals("Second", journal.drafts().get(0).title);
+
+            // Resume the draft while another session starts a tour with the same id.
+            Controller resumed = recovered.newSession();
+            Controller other = recovered.newSession();
+            checkStatus(resumed.resumeNewTour(journal.drafts().get(0)));
+            checkStatus(other.startNewTour("T5", "Other", Annotation.DEFAULT));
+            resumed.setLocation(0, 100);
+            checkStatus(resumed.addWaypoint(ann("Second 2")));
+            other.setLocation(0, 0);
+            checkStatus(other.addWaypoint(ann("Other 1")));
+            journal.close();
+
+            journal = TourJournal.open(path, new TourCatalog(WAYPOINT_RADIUS, WAYPOINT_SEPARATION), 100, 5, false);
+            Map<String, Integer> drafts = new HashMap<>();
+            for (Tour draft : journal.drafts()) {
+                drafts.put(draft.title, draft.waypoints.size());
+            }
+            Map<String, Integer> expected = new HashMap<>();
+            expected.put("Second", 2);
+            expected.put("Other", 1);
+            Assert.assertEquals(expected, drafts);
+            journal.close();
+
+            Status status = catalog.newSession().resumeNewTour(null);
+            Assert.assertEquals(Status.Error.Code.NO_DRAFT, ((Status.Error) status).getCode());
+            status = catalog.newSession().resumeNewTour(new Tour(null, "No id", Annotation.DEFAULT));
+            Assert.assertEquals(Status.Error.Code.NO_TOUR_ID, ((Status.Error) status).getCode());
+        } finally {
+            Files.delete(path);
+        }
+    }
 }
@@ -4,6 +4,9 @@
 package tourguide;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -85,4 +88,62 @@ public class DisplacementTest {
         double distance = new Displacement(-3.0, -4.0).distance();
         assertEquals(5.0, distance, EPS);
     }
+
+    /*
+     * Accuracy of the fast bearing against the exact calculation.
+     */
+
+    private static void checkFastBearing(double east, double north) {
+        double exact = Displacement.bearing(east, north);
+        double fast = Displacement.fastBearing(east, north);
+        double error = Math.abs(exact - fast);
+        // 0 and 360 degrees are the same bearing.
+        error = Math.min(error, 360.0 - error);
+        assertTrue("Bearing of (" + east + ", " + north + "): exact " + exact + ", fast " + fast,
+                error <= Displacement.FAST_BEARING_MAX_ERROR);
+        assertTrue(fast >= 0.0 && fast <= 360.0);
+    }
+
+    @Test
+    public void testFastBearingCompassPoints() {
+        for (int e = -1; e <= 1; e++) {
+            for (int n = -1; n <= 1; n++) {
+                if (e != 0 || n != 0) checkFastBearing(e, n);
+            }
+        }
+        assertEquals(0.0, Displacement.fastBearing(0.0, 0.0), 0.0);
+    }
+
+    @Test
+    public void testFastBearingRandom() {
+        Random random = new Random(12345);
+        for (int i = 0; i < 1000000; i++) {
+            double scale = Math.pow(10, random.nextInt(9) - 2);
+            checkFastBearing((random.nextDouble() - 0.5) * scale, (random.nextDouble() - 0.5) * scale);
+        }
+    }
+
+    @Test
+    public void testFastBearingNearAxes() {
+        for (double tiny = 1e-9; tiny < 1; tiny *= 3) {
+            checkFastBearing(tiny, 1.0);
+            checkFastBearing(-tiny, 1.0);
+            checkFastBearing(tiny, -1.0);
+            checkFastBearing(1.0, tiny);
+            checkFastBearing(-1.0, -tiny);
+            checkFastBearing(1.0, 1.0 + tiny);
+        }
+    }
+
+    @Test
+    public void testFastBearingChunks() {
+        Random random = new Random(54321);
+        for (int i = 0; i < 100000; i++) {
+            double east = (random.nextDouble() - 0.5) * 4000;
+            double north = (random.nextDouble() - 0.5) * 4000;
+            double distance = Displacement.distance(east, north);
+            assertEquals(new Chunk.FollowBearing(Displacement.bearing(east, north), distance),
+                    new Chunk.FollowBearing(Displacement.fastBearing(east, north), distance));
+        }
+    }
 }
@@ -0,0 +1,189 @@
+package tourguide;
+
+/**
+ * An immutable, compact form of a finished tour used while following it.
+ * Waypoint coordinates are kept in parallel primitive arrays so the FOLLOW mode hot path
+ * only reads primitives and does not allocate.
+ */
+public final class FollowPlan {
+
+    public final String title;
+
+    /**
+     * The number of waypoints (and legs) in the tour.
+     */
+    public final int size;
+
+    /**
+     * The square of the waypoint radius, so arrival checks need no square root.
+     */
+    public final double radiusSquared;
+
+    /**
+     * The length of the tour, along straight legs from the first waypoint to the last.
+     */
+    public final double length;
+
+    private final double[] east;
+    private final double[] north;
+    private final Annotation[] waypointAnnotations;
+    private final Annotation[] legAnnotations;
+    // Prefix sums of leg lengths: the distance along the tour from the first waypoint to each waypoint.
+    private final double[] distanceTo;
+    // Vector of each leg from the waypoint before it, and the reciprocal of its squared length.
+    // The first leg has no waypoint before it and is left zero.
+    private final double[] legEast;
+    private final double[] legNorth;
+    private final double[] legInverseLengthSquared;
+
+    /**
+     * Compiles a finished tour.
+     * @param tour The tour, which must have the same number of legs and waypoints.
+     * @param waypointRadius The distance within which a follower is at a waypoint.
+     */
+    public FollowPlan(Tour tour, double waypointRadius) {
+        title = tour.title;
+        size = tour.waypoints.size();
+        radiusSquared = waypointRadius * waypointRadius;
+        east = new double[size];
+        north = new double[size];
+        waypointAnnotations = new Annotation[size];
+        distanceTo = new double[size];
+        legEast = new double[size];
+        legNorth = new double[size];
+        legInverseLengthSquared = new double[size];
+        legAnnotations = tour.legAnnotations.toArray(new Annotation[size]);
+        for (int i = 0; i < size; i++) {
+            Waypoint waypoint = tour.waypoints.get(i);
+            east[i] = waypoint.east;
+            north[i] = waypoint.north;
+            waypointAnnotations[i] = waypoint.annotation;
+            if (i > 0) {
+                legEast[i] = east[i] - east[i - 1];
+                legNorth[i] = north[i] - north[i - 1];
+                double lengthSquared = legEast[i] * legEast[i] + legNorth[i] * legNorth[i];
+                legInverseLengthSquared[i] = lengthSquared == 0.0 ? 0.0 : 1.0 / lengthSquared;
+                distanceTo[i] = distanceTo[i - 1] + Math.sqrt(lengthSquared);
+            }
+        }
+        length = size == 0 ? 0.0 : distanceTo[size - 1];
+    }
+
+    public double east(int waypoint) {
+        return east[waypoint];
+    }
+
+    public double north(int waypoint) {
+        return north[waypoint];
+    }
+
+    public Annotation waypointAnnotation(int waypoint) {
+        return waypointAnnotations[waypoint];
+    }
+
+    /**
+     * @param leg The index of the leg, which leads to the waypoint with the same index.
+     * @return The annotation of the leg.
+     */
+    public Annotation legAnnotation(int leg) {
+        return legAnnotations[leg];
+    }
+
+    /**
+     * @param waypoint The index of the waypoint.
+     * @return The distance along the tour from the first waypoint to this one.
+     */
+    public double distanceTo(int waypoint) {
+        return distanceTo[waypoint];
+    }
+
+    /**
+     * Finds how far a follower still has to go: straight to the next waypoint, then along the tour.
+     * Takes constant time however long the tour.
+     * @param stage The index of the next waypoint to reach.
+     * @param distanceToNext The distance from the follower to that waypoint.
+     * @return The distance remaining, 0 if the tour is finished.
+     */
+    public double remaining(int stage, double distanceToNext) {
+        return stage >= size ? 0.0 : distanceToNext + length - distanceTo[stage];
+    }
+
+    /**
+     * Finds the squared distance from a location to a leg, taken as the straight segment from the
+     * waypoint before it. Needs no square root, so it is cheap enough to run on every fix.
+     * @param leg The index of the leg, which must be at least 1.
+     * @param e The easting of the location.
+     * @param n The northing of the location.
+     * @return The squared distance to the closest point of the leg.
+     */
+    public double distanceSquaredFromLeg(int leg, double e, double n) {
+        double pe = e - east[leg - 1];
+        double pn = n - north[leg - 1];
+        double along = pe * legEast[leg] + pn * legNorth[leg];
+        if (along <= 0.0) {
+            return pe * pe + pn * pn; // Before the start of the leg.
+        }
+        if (along * legInverseLengthSquared[leg] >= 1.0) {
+            double de = e - east[leg];
+            double dn = n - north[leg];
+            return de * de + dn * dn; // Beyond the end of the leg.
+        }
+        double across = pe * legNorth[leg] - pn * legEast[leg];
+        return across * across * legInverseLengthSquared[leg];
+    }
+
+    /**
+     * Checks whether a location is within the waypoint radius of a waypoint.
+     * @param waypoint The index of the waypoint.
+     * @param e The easting of the location.
+     * @param n The northing of the location.
+     * @return True if the location is at the waypoint.
+     */
+    public boolean isAt(int waypoint, double e, double n) {
+        double de = east[waypoint] - e;
+        double dn = north[waypoint] - n;
+        return de * de + dn * dn <= radiusSquared;
+    }
+
+    /**
+     * Finds how far a follower got along the tour while moving in a straight line between two fixes.
+     * The path is tested against the radius circle of each upcoming waypoint in turn, so several
+     * waypoints can be reached in one move even if no fix lands inside their circles. Each waypoint
+     * must be reached at or after the point on the path where the one before it was reached.
+     * @param stage The index of the next waypoint to reach.
+     * @param fromEast The easting of the previous fix.
+     * @param fromNorth The northing of the previous fix.
+     * @param toEast The easting of the new fix.
+     * @param toNorth The northing of the new fix.
+     * @return The index of the next waypoint to reach after the move.
+     */
+    public int advance(int stage, double fromEast, double fromNorth, double toEast, double toNorth) {
+        double de = toEast - fromEast;
+        double dn = toNorth - fromNorth;
+        double a = de * de + dn * dn;
+        double t = 0.0; // How far along the path the last waypoint was reached.
+        while (stage < size) {
+            double pe = fromEast + t * de;
+            double pn = fromNorth + t * dn;
+            if (!isAt(stage, pe, pn)) {
+                if (a == 0.0) break;
+                // Solve |p + s*d - w|^2 = r^2 for the first s >= 0, taking p to be the current point.
+                double we = pe - east[stage];
+                double wn = pn - north[stage];
+                double b = we * de + wn * dn;
+                double c = we * we + wn * wn - radiusSquared;
+                double discriminant = b * b - a * c;
+                if (discriminant < 0.0 || b >= 0.0) break; // Never enters, or already moving away.
+                double reachedAt = t + (-b - Math.sqrt(discriminant)) / a;
+                if (reachedAt > 1.0) {
+                    // Only reached beyond the new fix, unless rounding put the fix itself just outside.
+                    if (!isAt(stage, toEast, toNorth)) break;
+                    reachedAt = 1.0;
+                }
+                t = reachedAt;
+            }
+            stage++;
+        }
+        return stage;
+    }
+}
@@ -0,0 +1,178 @@
+package tourguide;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import tourguide.ControllerMetrics.Operation;
+
+/**
+ * A session that records its calls in {@link ControllerMetrics} and passes them on to a
+ * {@link ControllerImp}. Arrivals and mode changes are picked up from the session's events.
+ * Created by {@link TourCatalog#newSession()} when the catalog has metrics.
+ */
+public class InstrumentedController implements Controller {
+
+    private final ControllerImp delegate;
+    private final ControllerMetrics metrics;
+    // Counts setLocation calls, to time one in ControllerMetrics.SET_LOCATION_SAMPLE.
+    private int setLocationCalls;
+    // The mode the session is counted in, or null once it is closed.
+    private MODE mode = MODE.BROWSE;
+
+    InstrumentedController(ControllerImp delegate, ControllerMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        metrics.modeChanged(null, MODE.BROWSE);
+        delegate.addSessionListener(event -> {
+            if (event instanceof TourEvent.WaypointReached) {
+                metrics.arrived(((TourEvent.WaypointReached) event).tourId);
+            } else if (event instanceof TourEvent.ModeChanged && mode != null) {
+                TourEvent.ModeChanged change = (TourEvent.ModeChanged) event;
+                metrics.modeChanged(change.from, change.to);
+                mode = change.to;
+            }
+        });
+    }
+
+    private Status record(Operation operation, long start, Status status) {
+        metrics.timed(operation, System.nanoTime() - start);
+        metrics.called(operation);
+        if (status instanceof Status.Error) {
+            metrics.failed((Status.Error) status);
+        }
+        return status;
+    }
+
+    @Override
+    public Status startNewTour(String id, String title, Annotation annotation) {
+        long start = System.nanoTime();
+        return record(Operation.START_NEW_TOUR, start, delegate.startNewTour(id, title, annotation));
+    }
+
+    @Override
+    public Status addWaypoint(Annotation annotation) {
+        long start = System.nanoTime();
+        return record(Operation.ADD_WAYPOINT, start, delegate.addWaypoint(annotation));
+    }
+
+    @Override
+    public Status addLeg(Annotation annotation) {
+        long start = System.nanoTime();
+        return record(Operation.ADD_LEG, start, delegate.addLeg(annotation));
+    }
+
+    @Override
+    public Status endNewTour() {
+        long start = System.nanoTime();
+        return record(Operation.END_NEW_TOUR, start, delegate.endNewTour());
+    }
+
+    @Override
+    public Status resumeNewTour(Tour draft) {
+        long start = System.nanoTime();
+        return record(Operation.RESUME_NEW_TOUR, start, delegate.resumeNewTour(draft));
+    }
+
+    @Override
+    public Status showTourDetails(String id) {
+        long start = System.nanoTime();
+        return record(Operation.SHOW_TOUR_DETAILS, start, delegate.showTourDetails(id));
+    }
+
+    @Override
+    public Status showToursOverview() {
+        long start = System.nanoTime();
+        return record(Operation.SHOW_TOURS_OVERVIEW, start, delegate.showToursOverview());
+    }
+
+    @Override
+    public Status showToursOverview(String afterId, int limit) {
+        long start = System.nanoTime();
+        return record(Operation.SHOW_TOURS_OVERVIEW, start, delegate.showToursOverview(afterId, limit));
+    }
+
+    @Override
+    public Status showNearestTours(int count) {
+        long start = System.nanoTime();
+        return record(Operation.SHOW_NEAREST_TOURS, start, delegate.showNearestTours(count));
+    }
+
+    @Override
+    public Status showToursWithin(double radius) {
+        long start = System.nanoTime();
+        return record(Operation.SHOW_TOURS_WITHIN, start, delegate.showToursWithin(radius));
+    }
+
+    @Override
+    public Status searchTours(String query) {
+        long start = System.nanoTime();
+        return record(Operation.SEARCH_TOURS, start, delegate.searchTours(query));
+    }
+
+    @Override
+    public Status searchTours(String query, String afterId, int limit) {
+        long start = System.nanoTime();
+        return record(Operation.SEARCH_TOURS, start, delegate.searchTours(query, afterId, limit));
+    }
+
+    @Override
+    public Status followTour(String id) {
+        long start = System.nanoTime();
+        return record(Operation.FOLLOW_TOUR, start, delegate.followTour(id));
+    }
+
+    @Override
+    public Status endSelectedTour() {
+        long start = System.nanoTime();
+        return record(Operation.END_SELECTED_TOUR, start, delegate.endSelectedTour());
+    }
+
+    @Override
+    public void setLocation(double easting, double northing) {
+        metrics.called(Operation.SET_LOCATION);
+        if ((++setLocationCalls & (ControllerMetrics.SET_LOCATION_SAMPLE - 1)) != 0) {
+            delegate.setLocation(easting, northing);
+            return;
+        }
+        long start = System.nanoTime();
+        delegate.setLocation(easting, northing);
+        metrics.timed(Operation.SET_LOCATION, System.nanoTime() - start);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+        long start = System.nanoTime();
+        TraceResult result = delegate.setLocations(eastings, northings);
+        metrics.timed(Operation.SET_LOCATIONS, System.nanoTime() - start);
+        metrics.called(Operation.SET_LOCATIONS);
+        return result;
+    }
+
+    @Override
+    public List<Chunk> getOutput() {
+        long start = System.nanoTime();
+        List<Chunk> output = delegate.getOutput();
+        metrics.timed(Operation.GET_OUTPUT, System.nanoTime() - start);
+        metrics.called(Operation.GET_OUTPUT);
+        return output;
+    }
+
+    @Override
+    public void addListener(TourListener listener, Executor executor) {
+        delegate.addListener(listener, executor);
+    }
+
+    @Override
+    public void removeListener(TourListener listener) {
+        delegate.removeListener(listener);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+        if (mode != null) {
+            metrics.modeChanged(mode, null);
+            mode = null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package tourguide;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, with buckets of 1/16 of a power of two,
+ * so any percentile is reported to within about 6%. Recording is one atomic increment.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(nanos, 0)));
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * @return A copy of the counts recorded so far, which later recording doesn't change.
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < counts.length(); i++) {
+            copy.counts.set(i, counts.get(i));
+        }
+        return copy;
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency that the given percentage of recorded latencies are at or below.
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) return upperBound(i);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,70 @@
+package tourguide;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A copy-on-write set of listener registrations. Firing iterates over a plain array, so checking
+ * {@link #isEmpty()} and firing cost no allocation beyond the event itself and any executor tasks.
+ */
+final class Listeners {
+    private static final Logger logger = Log.LOGGER;
+
+    private static final class Registration {
+        final TourListener listener;
+        final Executor executor; // Null to call the listener directly.
+
+        Registration(TourListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private static final Registration[] NONE = new Registration[0];
+
+    private volatile Registration[] registrations = NONE;
+
+    /**
+     * @param listener The listener to add.
+     * @param executor The executor to deliver events through, or null to deliver them synchronously.
+     */
+    synchronized void add(TourListener listener, Executor executor) {
+        Registration[] grown = Arrays.copyOf(registrations, registrations.length + 1);
+        grown[registrations.length] = new Registration(listener, executor);
+        registrations = grown;
+    }
+
+    /**
+     * Removes every registration of a listener.
+     */
+    synchronized void remove(TourListener listener) {
+        registrations = Arrays.stream(registrations)
+                .filter(r -> r.listener != listener)
+                .toArray(Registration[]::new);
+    }
+
+    boolean isEmpty() {
+        return registrations.length == 0;
+    }
+
+    void fire(TourEvent event) {
+        for (Registration registration : registrations) {
+            if (registration.executor == null) {
+                deliver(registration.listener, event);
+            } else {
+                registration.executor.execute(() -> deliver(registration.listener, event));
+            }
+        }
+    }
+
+    private static void deliver(TourListener listener, TourEvent event) {
+        try {
+            listener.onEvent(event);
+        } catch (RuntimeException e) {
+            // One failing listener must not stop the others or the caller.
+            logger.log(Level.WARNING, "Listener failed on " + event, e);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package tourguide;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * The tours of a catalog held in one set of maps and indices.
+ *
+ * Each change is published in one step: a query sees all of an {@link #addAll} or none of it.
+ * Changes are serialised on the store's monitor and hold a write lock while they update the maps
+ * and indices; queries read optimistically, without locking, and only take the read lock to run
+ * again if a change overlapped them.
+ */
+final class LocalTourStore implements TourStore {
+
+    private static final Logger logger = Log.LOGGER;
+
+    private final Map<String, Tour> tours = new ConcurrentHashMap<>();
+    // The same tours ordered by id, so the overview can be read a page at a time.
+    private final NavigableMap<String, Tour> toursById = new ConcurrentSkipListMap<>();
+    private final SpatialIndex spatialIndex = new SpatialIndex();
+    private final TextIndex textIndex = new TextIndex();
+
+    // Tours added from a catalog file, whose waypoints and text are only indexed when first needed.
+    private final List<Tour> unindexed = new ArrayList<>();
+    private volatile boolean hasUnindexed;
+
+    // Held for writing while a change updates the maps and indices. Taken inside the store's
+    // monitor, which serialises the changes.
+    private final StampedLock publication = new StampedLock();
+
+    // Sum of ControllerMetrics.estimatedBytes over the tours, kept up to date as tours are added,
+    // replaced, removed and decoded.
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    // Incremented on every change, so sessions can tell when views of the catalog are stale.
+    private volatile long version;
+
+    private final double waypointRadius;
+
+    /**
+     * @param waypointRadius The radius that tours are compiled into their {@link FollowPlan} with.
+     */
+    LocalTourStore(double waypointRadius) {
+        this.waypointRadius = waypointRadius;
+    }
+
+    @Override
+    public Tour get(String id) {
+        return id == null ? null : loaded(tours.get(id));
+    }
+
+    /**
+     * Decodes the details of a tour read from a catalog file, if that hasn't been done yet.
+     */
+    private Tour loaded(Tour tour) {
+        if (tour != null && !tour.isLoaded()) {
+            synchronized (tour) {
+                if (!tour.isLoaded()) {
+                    long before = ControllerMetrics.estimatedBytes(tour);
+                    tour.source.decode(tour);
+                    tour.freeze(waypointRadius);
+                    tour.source = null;
+                    // A tour that has left the store is no longer counted, see put and remove.
+                    if (tours.get(tour.id) == tour) {
+                        estimatedBytes.addAndGet(ControllerMetrics.estimatedBytes(tour) - before);
+                    }
+                }
+            }
+        }
+        return tour;
+    }
+
+    @Override
+    public void add(Tour tour) {
+        tour.freeze(waypointRadius);
+        publish(tour);
+    }
+
+    @Override
+    public void addAll(Collection<Tour> newTours) {
+        for (Tour tour : newTours) {
+            if (tour.plan == null) {
+                tour.freeze(waypointRadius);
+            }
+        }
+        synchronized (this) {
+            long stamp = publication.writeLock();
+            try {
+                for (Tour tour : newTours) {
+                    Tour old = put(tour);
+                    if (old != null) {
+                        spatialIndex.remove(old);
+                        textIndex.remove(old);
+                    }
+                }
+                spatialIndex.addAll(newTours);
+                textIndex.addAll(newTours);
+                version++;
+            } finally {
+                publication.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void adopt(Tour tour) {
+        if (tour.isLoaded()) {
+            publish(tour);
+        } else {
+            addUnloaded(tour);
+        }
+    }
+
+    /**
+     * Publishes a compiled tour, replacing any tour with the same id.
+     */
+    private synchronized void publish(Tour tour) {
+        long stamp = publication.writeLock();
+        try {
+            Tour old = put(tour);
+            if (old != null) {
+                spatialIndex.remove(old);
+                textIndex.remove(old);
+            }
+            spatialIndex.add(tour);
+            textIndex.add(tour);
+            version++;
+        } finally {
+            publication.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public synchronized Tour remove(String id) {
+        Tour old = tours.get(id);
+        if (old == null) return null;
+        long stamp = publication.writeLock();
+        try {
+            synchronized (old) {
+                tours.remove(id);
+                estimatedBytes.addAndGet(-ControllerMetrics.estimatedBytes(old));
+            }
+            toursById.remove(id);
+            spatialIndex.remove(old);
+            textIndex.remove(old);
+            version++;
+        } finally {
+            publication.unlockWrite(stamp);
+        }
+        return old;
+    }
+
+    /**
+     * Puts a tour in place of any tour with the same id, keeping the estimated size up to date.
+     * Called holding the store's locks; the tour replaced is swapped out holding its own lock, so
+     * a decode running meanwhile is counted either before it leaves or not at all.
+     * @return The tour replaced, or null.
+     */
+    private Tour put(Tour tour) {
+        // Measured before the tour is visible, as it may be decoded as soon as it is.
+        long bytes = ControllerMetrics.estimatedBytes(tour);
+        Tour old = tours.get(tour.id);
+        if (old == null) {
+            tours.put(tour.id, tour);
+        } else {
+            synchronized (old) {
+                tours.put(tour.id, tour);
+                bytes -= ControllerMetrics.estimatedBytes(old);
+            }
+        }
+        toursById.put(tour.id, tour);
+        estimatedBytes.addAndGet(bytes);
+        return old;
+    }
+
+    @Override
+    public synchronized void addUnloaded(Tour tour) {
+        long stamp = publication.writeLock();
+        try {
+            Tour old = put(tour);
+            if (old != null) {
+                spatialIndex.remove(old);
+                textIndex.remove(old);
+            }
+            unindexed.add(tour);
+            hasUnindexed = true;
+            version++;
+        } finally {
+            publication.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public List<Tour> loadedTours() {
+        List<Tour> all = read(() -> new ArrayList<>(toursById.values()));
+        for (int i = 0; i < all.size(); i++) {
+            loaded(all.get(i));
+        }
+        return all;
+    }
+
+    /**
+     * Indexes the waypoints of tours read from catalog files, decoding them if necessary.
+     * A tour whose details are corrupt is logged and left out of the indices, so it can't
+     * fail every later query; looking it up by id still reports the corruption.
+     */
+    private synchronized void indexUnloaded() {
+        List<Tour> current = new ArrayList<>(unindexed.size());
+        for (Tour tour : unindexed) {
+            if (tours.get(tour.id) == tour) {
+                try {
+                    current.add(loaded(tour));
+                } catch (UncheckedIOException e) {
+                    logger.warning(() -> "TOUR NOT INDEXED: " + tour.id + ": " + e.getCause().getMessage());
+                }
+            }
+        }
+        long stamp = publication.writeLock();
+        try {
+            spatialIndex.addAll(current);
+            textIndex.addAll(current);
+        } finally {
+            publication.unlockWrite(stamp);
+        }
+        unindexed.clear();
+        hasUnindexed = false;
+    }
+
+    /**
+     * Runs a query that sees the maps and indices between changes, never part way through one.
+     * The query may run twice, so it must not have side effects beyond decoding tours.
+     */
+    private <T> T read(Supplier<T> query) {
+        long stamp = publication.tryOptimisticRead();
+        if (stamp != 0) {
+            T result = query.get();
+            if (publication.validate(stamp)) {
+                return result;
+            }
+        }
+        stamp = publication.readLock();
+        try {
+            return query.get();
+        } finally {
+            publication.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public List<SpatialIndex.Hit> nearestTours(double east, double north, int count) {
+        if (hasUnindexed) indexUnloaded();
+        return read(() -> spatialIndex.nearest(east, north, count));
+    }
+
+    @Override
+    public List<SpatialIndex.Hit> toursWithin(double east, double north, double radius) {
+        if (hasUnindexed) indexUnloaded();
+        return read(() -> spatialIndex.within(east, north, radius));
+    }
+
+    @Override
+    public List<TextIndex.Hit> search(String query, String afterId, int limit) {
+        if (hasUnindexed) indexUnloaded();
+        return read(() -> textIndex.search(query, afterId == null ? null : tours.get(afterId), limit));
+    }
+
+    @Override
+    public TextIndex.Hit searchHit(String query, String id) {
+        if (hasUnindexed) indexUnloaded();
+        Tour tour = id == null ? null : tours.get(id);
+        return tour == null ? null : read(() -> textIndex.hit(query, tour));
+    }
+
+    @Override
+    public List<TextIndex.Hit> searchHits(String query, TextIndex.Hit cursor, int limit) {
+        if (hasUnindexed) indexUnloaded();
+        return read(() -> textIndex.searchAfter(query, cursor, limit));
+    }
+
+    @Override
+    public Collection<Tour> tours() {
+        return Collections.unmodifiableCollection(toursById.values());
+    }
+
+    @Override
+    public List<Tour> toursAfter(String afterId, int limit) {
+        return read(() -> {
+            Collection<Tour> tail = afterId == null
+                    ? toursById.values()
+                    : toursById.tailMap(afterId, false).values();
+            List<Tour> page = new ArrayList<>(Math.min(limit, 64));
+            for (Tour tour : tail) {
+                if (page.size() >= limit) break;
+                page.add(tour);
+            }
+            return page;
+        });
+    }
+
+    @Override
+    public int size() {
+        return read(tours::size);
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return estimatedBytes.get();
+    }
+}
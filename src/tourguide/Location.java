@@ -0,0 +1,21 @@
+package tourguide;
+
+/**
+ * A location fix, as fed to {@link LocationStream}.
+ */
+public final class Location {
+    public final double east, north;
+
+    public Location(double east, double north) {
+        this.east = east;
+        this.north = north;
+    }
+
+    @Override
+    public String toString() {
+        return "Location{" +
+                "east=" + east +
+                ", north=" + north +
+                '}';
+    }
+}
@@ -0,0 +1,357 @@
+package tourguide;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Drives a controller session from a {@link Flow.Publisher} of location fixes and publishes the
+ * session's output, so sensor threads never block on the controller and never queue without bound.
+ *
+ * Subscribe the stream to a publisher of fixes and subscribe consumers of output to the stream.
+ * All work on the session runs in one serialised task at a time on the executor, so the stream owns
+ * the session: other calls on it must be passed to {@link #execute}.
+ *
+ * Fixes are either coalesced, keeping only the latest one not yet applied, or buffered, requesting
+ * only as many from the publisher as the buffer has room for. Each output subscriber is likewise
+ * only ever sent the latest output, when it has demand for one, and is served by its own task on
+ * the executor, so a slow subscriber holds at most one output and never delays the session or
+ * other subscribers.
+ */
+public class LocationStream implements Flow.Subscriber<Location>, Flow.Publisher<List<Chunk>> {
+    private static final Logger logger = Log.LOGGER;
+
+    private final Controller controller;
+    private final Executor executor;
+    private final boolean coalesce;
+    private final int bufferSize;
+
+    // Input not yet applied to the session: the latest fix when coalescing, else a bounded queue.
+    private final AtomicReference<Location> latestFix = new AtomicReference<>();
+    private final Queue<Location> fixes;
+    private final Queue<Consumer<Controller>> commands = new ConcurrentLinkedQueue<>();
+    private volatile Flow.Subscription upstream;
+    private volatile boolean upstreamDone;
+    private volatile Throwable upstreamError;
+
+    // Number of times the session task was scheduled but not yet run to completion.
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final List<Output> outputs = new CopyOnWriteArrayList<>();
+    // Only written by the session task; read to seed new subscribers.
+    private volatile Published lastOutput;
+    private long outputVersion;
+    private volatile boolean finished;
+
+    /**
+     * An output of the session, numbered in the order the session produced them.
+     */
+    private static final class Published {
+        final List<Chunk> chunks;
+        final long version;
+
+        Published(List<Chunk> chunks, long version) {
+            this.chunks = chunks;
+            this.version = version;
+        }
+    }
+
+    /**
+     * @param controller The session to drive. Must not be used directly while the stream is active.
+     * @param executor Runs the session task and the output subscriber tasks.
+     * @param bufferSize The number of fixes to buffer, or 0 to coalesce fixes, keeping only the latest.
+     */
+    public LocationStream(Controller controller, Executor executor, int bufferSize) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("Buffer size must not be negative, got " + bufferSize);
+        }
+        this.controller = Objects.requireNonNull(controller);
+        this.executor = Objects.requireNonNull(executor);
+        this.coalesce = bufferSize == 0;
+        this.bufferSize = bufferSize;
+        fixes = coalesce ? null : new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    /**
+     * Runs an operation on the session, in order with the fixes, e.g. to follow a tour.
+     * Its effect on the output is published like that of a fix.
+     */
+    public void execute(Consumer<Controller> command) {
+        commands.add(command);
+        schedule();
+    }
+
+    //--------------------------
+    // Input of fixes
+    //--------------------------
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        // Coalescing holds at most one fix however fast they come, so it can take them all.
+        subscription.request(coalesce ? Long.MAX_VALUE : bufferSize);
+    }
+
+    @Override
+    public void onNext(Location fix) {
+        if (coalesce) {
+            latestFix.set(fix);
+        } else if (!fixes.offer(fix)) {
+            upstream.cancel();
+            onError(new IllegalStateException("Publisher sent more fixes than requested"));
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamError = throwable;
+        upstreamDone = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (pending.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Runs {@link #apply} for the input received so far. Never runs concurrently.
+     */
+    private void drain() {
+        int missed = 1;
+        while (true) {
+            if (!finished) {
+                try {
+                    apply();
+                } catch (Throwable e) {
+                    // Stop taking input rather than leave the stream stalled, and tell the subscribers.
+                    logger.warning(() -> "LOCATION STREAM FAILED: " + e);
+                    Flow.Subscription subscription = upstream;
+                    if (subscription != null) {
+                        subscription.cancel();
+                    }
+                    finish(e);
+                }
+            }
+            missed = pending.addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+
+    /**
+     * Applies the commands and fixes received so far and publishes the output.
+     */
+    private void apply() {
+        boolean done = upstreamDone;
+        Consumer<Controller> command;
+        while ((command = commands.poll()) != null) {
+            command.accept(controller);
+        }
+        if (coalesce) {
+            Location fix = latestFix.getAndSet(null);
+            if (fix != null) {
+                controller.setLocation(fix.east, fix.north);
+            }
+        } else {
+            int applied = 0;
+            Location fix;
+            while ((fix = fixes.poll()) != null) {
+                controller.setLocation(fix.east, fix.north);
+                applied++;
+            }
+            if (applied > 0 && !done) {
+                upstream.request(applied);
+            }
+        }
+        publish(controller.getOutput());
+        if (done && commands.isEmpty() && latestFix.get() == null && (coalesce || fixes.isEmpty())) {
+            finish(upstreamError);
+        }
+    }
+
+    private void finish(Throwable error) {
+        upstreamError = error;
+        finished = true;
+        for (Output output : outputs) {
+            output.finish(error);
+        }
+    }
+
+    private void publish(List<Chunk> output) {
+        // The controller returns the same list while its output is unchanged.
+        Published last = lastOutput;
+        if (last != null && output == last.chunks) return;
+        Published next = new Published(output, ++outputVersion);
+        lastOutput = next;
+        for (Output subscriber : outputs) {
+            subscriber.offer(next);
+        }
+    }
+
+    //--------------------------
+    // Output
+    //--------------------------
+
+    /**
+     * Subscribes to the output of the session. The subscriber is first sent the current output,
+     * if there is one, and then each changed output that is the latest when it has demand.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<Chunk>> subscriber) {
+        Output output = new Output(subscriber);
+        subscriber.onSubscribe(output);
+        // Only now can the session reach the subscriber, so no signal races onSubscribe.
+        outputs.add(output);
+        if (output.cancelled) {
+            outputs.remove(output);
+        }
+        // If the session publishes meanwhile, offer keeps the newer output.
+        Published current = lastOutput;
+        if (current != null) {
+            output.offer(current);
+        }
+        if (finished) {
+            output.finish(upstreamError);
+        }
+        output.start();
+    }
+
+    /**
+     * The subscription of one output subscriber, holding only the latest output not yet sent.
+     */
+    private final class Output implements Flow.Subscription {
+        private final Flow.Subscriber<? super List<Chunk>> subscriber;
+        // The newest output offered, which is only ever replaced by a newer one.
+        private final AtomicReference<Published> latest = new AtomicReference<>();
+        private long sentVersion; // Only touched by drain.
+        private final AtomicLong requested = new AtomicLong();
+        // Starts at one, holding back the drain until start, once onSubscribe has returned.
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean cancelled, done;
+        private volatile Throwable error;
+        private boolean terminated;
+
+        Output(Flow.Subscriber<? super List<Chunk>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(Published output) {
+            Published current;
+            do {
+                current = latest.get();
+                if (current != null && current.version >= output.version) return;
+            } while (!latest.compareAndSet(current, output));
+            schedule();
+        }
+
+        void finish(Throwable error) {
+            this.error = error;
+            done = true;
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                finish(new IllegalArgumentException("Non-positive request " + n));
+                cancelled = true;
+            } else {
+                requested.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            outputs.remove(this);
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Releases the drain held back since the subscription was created, running it if anything
+         * was scheduled meanwhile.
+         */
+        void start() {
+            if (pending.decrementAndGet() > 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            while (true) {
+                if (!terminated) {
+                    try {
+                        Published next;
+                        while (!cancelled && requested.get() > 0 && (next = unsent()) != null) {
+                            sentVersion = next.version;
+                            requested.decrementAndGet();
+                            subscriber.onNext(next.chunks);
+                        }
+                        if (done && (cancelled || unsent() == null)) {
+                            terminate(error);
+                        }
+                    } catch (Throwable e) {
+                        // A failing subscriber gets no more output, but mustn't stall its task.
+                        cancelled = true;
+                        logger.warning(() -> "OUTPUT SUBSCRIBER FAILED: " + e);
+                        if (!terminated) {
+                            try {
+                                terminate(e);
+                            } catch (Throwable ignored) {
+                                // Already logged.
+                            }
+                        }
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) return;
+            }
+        }
+
+        private Published unsent() {
+            Published next = latest.get();
+            return next != null && next.version > sentVersion ? next : null;
+        }
+
+        private void terminate(Throwable error) {
+            terminated = true;
+            outputs.remove(this);
+            if (error == null) {
+                subscriber.onComplete();
+            } else {
+                logger.fine(() -> "OUTPUT STREAM FAILED: " + error);
+                subscriber.onError(error);
+            }
+        }
+    }
+}
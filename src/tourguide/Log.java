@@ -0,0 +1,35 @@
+package tourguide;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging switches for the tourguide package.
+ *
+ * Code on the per-fix hot paths (setLocation, Displacement) must guard each logging call with
+ * {@link #hot(Level)} so that no message is built unless it will be published. Elsewhere, messages
+ * are passed as suppliers so they are only built when the level is enabled.
+ *
+ * Running with -Dtourguide.hotPathLogging=false removes hot path logging altogether: the flag is a
+ * static final constant, so the JIT folds the guards away and the code runs as if it had no logging.
+ */
+public final class Log {
+
+    public static final Logger LOGGER = Logger.getLogger("tourguide");
+
+    /**
+     * Whether hot paths log at all. Fixed at class initialisation.
+     */
+    public static final boolean HOT_PATHS = !"false".equals(System.getProperty("tourguide.hotPathLogging"));
+
+    private Log() {}
+
+    /**
+     * Guard for logging calls on hot paths.
+     * @param level The level of the message about to be logged.
+     * @return True if the message would be published.
+     */
+    public static boolean hot(Level level) {
+        return HOT_PATHS && LOGGER.isLoggable(level);
+    }
+}
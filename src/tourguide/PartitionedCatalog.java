@@ -0,0 +1,460 @@
+package tourguide;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * A tour catalog spread over several nodes, each holding the tours whose ids hash to it.
+ *
+ * Tour ids are placed on a consistent hash ring, where each node owns many points ("virtual nodes")
+ * so its share of the tours is even. Adding or removing a node only moves the tours between it and
+ * its neighbours on the ring, about 1/N of them. Lookups by id go to the owning node, while the
+ * overview, nearby and search queries ask every node and merge the results.
+ *
+ * Here the nodes are in-process {@link TourCatalog}s, standing in for remote nodes, which makes
+ * this a harness for testing partitioning in one JVM. Sessions are created and configured on the
+ * partitioned catalog exactly as on a single one, and see the same behaviour. Only the data is
+ * partitioned: settings, listeners, journal and metrics belong to this catalog.
+ *
+ * The tours are kept by a {@link Partitions} store, which routes each change to the owning node
+ * and gathers the queries from all of them, so every inherited method works on the nodes.
+ *
+ * Lookups run concurrently with updates, and see all of an {@link #addAll} or none of it. While a
+ * node is added or removed, a query may briefly see a moving tour on both nodes, or neither.
+ */
+public class PartitionedCatalog extends TourCatalog {
+
+    private static final Logger logger = Log.LOGGER;
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final Partitions partitions;
+
+    /**
+     * Creates a catalog with no nodes. Add nodes before adding tours.
+     * @param waypointRadius The distance within which a follower is considered to be at a waypoint.
+     * @param waypointSeparation The minimum distance between consecutive waypoints of a tour.
+     * @param virtualNodes The number of points each node has on the ring.
+     */
+    public PartitionedCatalog(double waypointRadius, double waypointSeparation, int virtualNodes) {
+        this(waypointRadius, waypointSeparation, new Partitions(waypointRadius, waypointSeparation, virtualNodes));
+    }
+
+    public PartitionedCatalog(double waypointRadius, double waypointSeparation) {
+        this(waypointRadius, waypointSeparation, DEFAULT_VIRTUAL_NODES);
+    }
+
+    private PartitionedCatalog(double waypointRadius, double waypointSeparation, Partitions partitions) {
+        super(waypointRadius, waypointSeparation, partitions);
+        this.partitions = partitions;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash, finished with the SplitMix64 mixer so nearby strings land far apart.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    //--------------------------
+    // Membership
+    //--------------------------
+
+    /**
+     * @return The names of the nodes, in the order they joined.
+     */
+    public List<String> nodeNames() {
+        return Collections.unmodifiableList(Arrays.asList(partitions.ring.names));
+    }
+
+    /**
+     * @param name The name of a node.
+     * @return The catalog of the node, or null if there is no such node.
+     */
+    public TourCatalog node(String name) {
+        return partitions.node(name);
+    }
+
+    /**
+     * @param id The id of a tour.
+     * @return The name of the node the tour belongs on.
+     */
+    public String nodeOf(String id) {
+        Ring ring = partitions.ring;
+        if (ring.nodes.length == 0) throw new IllegalStateException("The catalog has no nodes.");
+        return ring.names[ring.owner(id)];
+    }
+
+    /**
+     * Adds a node and moves to it the tours it now owns.
+     * @param name The name of the node, which places it on the ring.
+     * @return The number of tours moved.
+     */
+    public int addNode(String name) {
+        return partitions.addNode(name);
+    }
+
+    /**
+     * Removes a node, first moving its tours to the nodes that now own them.
+     * @param name The name of the node.
+     * @return The number of tours moved.
+     */
+    public int removeNode(String name) {
+        return partitions.removeNode(name);
+    }
+
+    /**
+     * The nodes and their points on the ring, replaced whenever a node joins or leaves.
+     */
+    private static final class Ring {
+        final String[] names;
+        final TourCatalog[] nodes;
+        // Sorted points, and the index of the node owning each.
+        final long[] points;
+        final int[] owners;
+        // Versions of the nodes that have left, published with the nodes that remain so the
+        // version never goes backwards.
+        final long retiredVersions;
+
+        Ring(String[] names, TourCatalog[] nodes, int virtualNodes, long retiredVersions) {
+            this.names = names;
+            this.nodes = nodes;
+            this.retiredVersions = retiredVersions;
+            long[][] byPoint = new long[names.length * virtualNodes][];
+            for (int n = 0; n < names.length; n++) {
+                for (int v = 0; v < virtualNodes; v++) {
+                    byPoint[n * virtualNodes + v] = new long[]{hash(names[n] + "#" + v), n};
+                }
+            }
+            Arrays.sort(byPoint, Comparator.comparingLong(point -> point[0]));
+            points = new long[byPoint.length];
+            owners = new int[byPoint.length];
+            for (int i = 0; i < byPoint.length; i++) {
+                points[i] = byPoint[i][0];
+                owners[i] = (int) byPoint[i][1];
+            }
+        }
+
+        /**
+         * @return The index of the node owning an id: the first point at or after its hash, wrapping round.
+         */
+        int owner(String id) {
+            int i = Arrays.binarySearch(points, hash(id));
+            if (i < 0) i = -i - 1;
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+
+    /**
+     * The tours of a partitioned catalog, spread over the nodes of a ring. Changes are routed to the
+     * node owning each tour and serialised on the store's monitor; queries ask every node and merge
+     * the results. An {@link #addAll} holds a write lock while it updates the nodes, and the
+     * gathered queries read as {@link LocalTourStore} does, so they never see part of one.
+     */
+    static final class Partitions implements TourStore {
+
+        private final double waypointRadius;
+        private final double waypointSeparation;
+        private final int virtualNodes;
+        private volatile Ring ring = new Ring(new String[0], new TourCatalog[0], 0, 0);
+
+        // Held for writing while an addAll updates the nodes.
+        private final StampedLock publication = new StampedLock();
+
+        Partitions(double waypointRadius, double waypointSeparation, int virtualNodes) {
+            if (virtualNodes <= 0) {
+                throw new IllegalArgumentException("A node needs at least one point on the ring, got " + virtualNodes + ".");
+            }
+            this.waypointRadius = waypointRadius;
+            this.waypointSeparation = waypointSeparation;
+            this.virtualNodes = virtualNodes;
+        }
+
+        TourCatalog node(String name) {
+            Ring ring = this.ring;
+            for (int i = 0; i < ring.names.length; i++) {
+                if (ring.names[i].equals(name)) return ring.nodes[i];
+            }
+            return null;
+        }
+
+        synchronized int addNode(String name) {
+            if (node(name) != null) {
+                throw new IllegalArgumentException("Node " + name + " already exists.");
+            }
+            Ring old = ring;
+            String[] names = Arrays.copyOf(old.names, old.names.length + 1);
+            TourCatalog[] nodes = Arrays.copyOf(old.nodes, old.nodes.length + 1);
+            names[old.names.length] = name;
+            nodes[old.nodes.length] = new TourCatalog(waypointRadius, waypointSeparation);
+            return rebalance(old, new Ring(names, nodes, virtualNodes, old.retiredVersions));
+        }
+
+        synchronized int removeNode(String name) {
+            Ring old = ring;
+            List<String> names = new ArrayList<>(Arrays.asList(old.names));
+            int index = names.indexOf(name);
+            if (index < 0) {
+                throw new IllegalArgumentException("Node " + name + " doesn't exist.");
+            }
+            if (names.size() == 1 && old.nodes[0].size() > 0) {
+                throw new IllegalStateException("Can't remove the last node while it holds tours.");
+            }
+            List<TourCatalog> nodes = new ArrayList<>(Arrays.asList(old.nodes));
+            names.remove(index);
+            TourCatalog leaving = nodes.remove(index);
+            // Retired with the new ring, which the leaving node's version stops counting in. Nothing
+            // changes the node before then: the tours it keeps until the switch are only copied.
+            long retired = old.retiredVersions + leaving.version();
+            return rebalance(old, new Ring(names.toArray(new String[0]), nodes.toArray(new TourCatalog[0]), virtualNodes, retired));
+        }
+
+        /**
+         * Copies every tour whose owner changes to its new node, switches to the new ring, and only
+         * then withdraws the tours from their old nodes, so lookups by id always find them.
+         */
+        private int rebalance(Ring from, Ring to) {
+            Map<TourCatalog, Integer> index = new HashMap<>();
+            for (int i = 0; i < to.nodes.length; i++) {
+                index.put(to.nodes[i], i);
+            }
+            List<Tour> moving = new ArrayList<>();
+            List<TourCatalog> movingFrom = new ArrayList<>();
+            for (TourCatalog node : from.nodes) {
+                Integer current = index.get(node);
+                for (Tour tour : node.tours()) {
+                    int owner = to.owner(tour.id);
+                    if (current == null || owner != current) {
+                        to.nodes[owner].adopt(tour);
+                        moving.add(tour);
+                        movingFrom.add(node);
+                    }
+                }
+            }
+            ring = to;
+            for (int i = 0; i < moving.size(); i++) {
+                movingFrom.get(i).remove(moving.get(i).id);
+            }
+            logger.info(() -> "CATALOG REBALANCED: " + to.nodes.length + " nodes, " + moving.size() + " tours moved");
+            return moving.size();
+        }
+
+        private TourCatalog ownerOf(String id) {
+            Ring ring = this.ring;
+            if (ring.nodes.length == 0) throw new IllegalStateException("The catalog has no nodes.");
+            return ring.nodes[ring.owner(id)];
+        }
+
+        /**
+         * Runs a query over the nodes between calls to {@link #addAll}, never part way through one.
+         * The query may run twice, so it must not have side effects beyond decoding tours.
+         */
+        private <T> T read(Supplier<T> query) {
+            long stamp = publication.tryOptimisticRead();
+            if (stamp != 0) {
+                T result = query.get();
+                if (publication.validate(stamp)) {
+                    return result;
+                }
+            }
+            stamp = publication.readLock();
+            try {
+                return query.get();
+            } finally {
+                publication.unlockRead(stamp);
+            }
+        }
+
+        //--------------------------
+        // Routed by tour id
+        //--------------------------
+
+        @Override
+        public Tour get(String id) {
+            return id == null || ring.nodes.length == 0 ? null : ownerOf(id).get(id);
+        }
+
+        @Override
+        public synchronized void add(Tour tour) {
+            ownerOf(tour.id).add(tour);
+        }
+
+        @Override
+        public synchronized void addAll(Collection<Tour> newTours) {
+            Ring ring = this.ring;
+            if (ring.nodes.length == 0) throw new IllegalStateException("The catalog has no nodes.");
+            List<List<Tour>> byNode = new ArrayList<>(ring.nodes.length);
+            for (int i = 0; i < ring.nodes.length; i++) {
+                byNode.add(new ArrayList<>());
+            }
+            for (Tour tour : newTours) {
+                byNode.get(ring.owner(tour.id)).add(tour);
+            }
+            long stamp = publication.writeLock();
+            try {
+                for (int i = 0; i < ring.nodes.length; i++) {
+                    if (!byNode.get(i).isEmpty()) ring.nodes[i].addAll(byNode.get(i));
+                }
+            } finally {
+                publication.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public synchronized void addUnloaded(Tour tour) {
+            ownerOf(tour.id).addUnloaded(tour);
+        }
+
+        @Override
+        public synchronized void adopt(Tour tour) {
+            ownerOf(tour.id).adopt(tour);
+        }
+
+        @Override
+        public synchronized Tour remove(String id) {
+            return ring.nodes.length == 0 ? null : ownerOf(id).remove(id);
+        }
+
+        @Override
+        public TextIndex.Hit searchHit(String query, String id) {
+            return id == null || ring.nodes.length == 0 ? null : ownerOf(id).searchHit(query, id);
+        }
+
+        //--------------------------
+        // Gathered from every node
+        //--------------------------
+
+        @Override
+        public long version() {
+            Ring ring = this.ring;
+            long version = ring.retiredVersions;
+            for (TourCatalog node : ring.nodes) {
+                version += node.version();
+            }
+            return version;
+        }
+
+        @Override
+        public long estimatedBytes() {
+            long bytes = 0;
+            for (TourCatalog node : ring.nodes) {
+                bytes += node.estimatedBytes();
+            }
+            return bytes;
+        }
+
+        @Override
+        public int size() {
+            return read(() -> {
+                int size = 0;
+                for (TourCatalog node : ring.nodes) {
+                    size += node.size();
+                }
+                return size;
+            });
+        }
+
+        /**
+         * @return A snapshot of all tours, in order of id.
+         */
+        @Override
+        public Collection<Tour> tours() {
+            return Collections.unmodifiableList(read(() -> {
+                List<Tour> all = new ArrayList<>();
+                for (TourCatalog node : ring.nodes) {
+                    all.addAll(node.tours());
+                }
+                all.sort(Comparator.comparing(tour -> tour.id));
+                return all;
+            }));
+        }
+
+        @Override
+        public List<Tour> loadedTours() {
+            return read(() -> {
+                List<Tour> all = new ArrayList<>();
+                for (TourCatalog node : ring.nodes) {
+                    all.addAll(node.loadedTours());
+                }
+                all.sort(Comparator.comparing(tour -> tour.id));
+                return all;
+            });
+        }
+
+        /**
+         * Reads one page of the tours in order of id, by reading a page from each node and merging them.
+         */
+        @Override
+        public List<Tour> toursAfter(String afterId, int limit) {
+            return read(() -> {
+                List<Tour> merged = new ArrayList<>();
+                for (TourCatalog node : ring.nodes) {
+                    merged.addAll(node.toursAfter(afterId, limit));
+                }
+                merged.sort(Comparator.comparing(tour -> tour.id));
+                return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+            });
+        }
+
+        @Override
+        public List<SpatialIndex.Hit> nearestTours(double east, double north, int count) {
+            return read(() -> {
+                List<SpatialIndex.Hit> merged = new ArrayList<>();
+                for (TourCatalog node : ring.nodes) {
+                    merged.addAll(node.nearestTours(east, north, count));
+                }
+                merged.sort(Comparator.comparingDouble(hit -> hit.distance));
+                return merged.size() > count ? new ArrayList<>(merged.subList(0, count)) : merged;
+            });
+        }
+
+        @Override
+        public List<SpatialIndex.Hit> toursWithin(double east, double north, double radius) {
+            return read(() -> {
+                List<SpatialIndex.Hit> merged = new ArrayList<>();
+                for (TourCatalog node : ring.nodes) {
+                    merged.addAll(node.toursWithin(east, north, radius));
+                }
+                merged.sort(Comparator.comparingDouble(hit -> hit.distance));
+                return merged;
+            });
+        }
+
+        /**
+         * Searches every node for the tours ranked after the cursor, which is scored by the node
+         * holding it, and merges the pages.
+         */
+        @Override
+        public List<TextIndex.Hit> search(String query, String afterId, int limit) {
+            return searchHits(query, searchHit(query, afterId), limit);
+        }
+
+        @Override
+        public List<TextIndex.Hit> searchHits(String query, TextIndex.Hit cursor, int limit) {
+            return read(() -> {
+                List<TextIndex.Hit> merged = new ArrayList<>();
+                for (TourCatalog node : ring.nodes) {
+                    merged.addAll(node.searchHits(query, cursor, limit));
+                }
+                merged.sort(TextIndex.RANKING);
+                return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+            });
+        }
+    }
+}
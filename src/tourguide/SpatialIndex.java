@@ -0,0 +1,239 @@
+package tourguide;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A uniform grid over the waypoints of all tours, used to find the tours that pass near a location.
+ * The distance of a tour from a location is the distance to its closest waypoint.
+ *
+ * Cells are immutable and replaced when tours are added or removed, so queries need no locking
+ * and may run concurrently with updates.
+ */
+public class SpatialIndex {
+
+    public static final double DEFAULT_CELL_SIZE = 500.0;
+
+    /**
+     * A tour found by a query, with its distance from the query location.
+     */
+    public static final class Hit {
+        public final Tour tour;
+        public final double distance;
+
+        Hit(Tour tour, double distance) {
+            this.tour = tour;
+            this.distance = distance;
+        }
+    }
+
+    private static final class Cell {
+        final Tour[] tours;
+        final double[] east;
+        final double[] north;
+
+        Cell(Tour[] tours, double[] east, double[] north) {
+            this.tours = tours;
+            this.east = east;
+            this.north = north;
+        }
+    }
+
+    private final double cellSize;
+    private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+
+    // Bounds of the occupied cells, so ring searches never scan empty space.
+    private volatile int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+    private volatile int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+
+    public SpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize The width of a grid cell. Roughly the typical query radius works well.
+     */
+    public SpatialIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    private int cell(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Indexes every waypoint of a tour.
+     * @param tour The tour to add.
+     */
+    public void add(Tour tour) {
+        addAll(Collections.singletonList(tour));
+    }
+
+    /**
+     * Indexes every waypoint of several tours, copying each affected cell only once.
+     * @param tours The tours to add.
+     */
+    public synchronized void addAll(Collection<Tour> tours) {
+        // Waypoints to add to each cell, with the tour of each waypoint at the same index.
+        Map<Long, List<Waypoint>> byCell = new HashMap<>();
+        Map<Long, List<Tour>> ownersByCell = new HashMap<>();
+        for (Tour tour : tours) {
+            for (Waypoint waypoint : tour.waypoints) {
+                int x = cell(waypoint.east);
+                int y = cell(waypoint.north);
+                byCell.computeIfAbsent(key(x, y), k -> new ArrayList<>()).add(waypoint);
+                ownersByCell.computeIfAbsent(key(x, y), k -> new ArrayList<>()).add(tour);
+                if (x < minX) minX = x;
+                if (x > maxX) maxX = x;
+                if (y < minY) minY = y;
+                if (y > maxY) maxY = y;
+            }
+        }
+        for (Map.Entry<Long, List<Waypoint>> entry : byCell.entrySet()) {
+            Cell old = cells.get(entry.getKey());
+            int oldSize = old == null ? 0 : old.tours.length;
+            int size = oldSize + entry.getValue().size();
+            Tour[] cellTours = new Tour[size];
+            double[] east = new double[size];
+            double[] north = new double[size];
+            if (old != null) {
+                System.arraycopy(old.tours, 0, cellTours, 0, oldSize);
+                System.arraycopy(old.east, 0, east, 0, oldSize);
+                System.arraycopy(old.north, 0, north, 0, oldSize);
+            }
+            List<Tour> owners = ownersByCell.get(entry.getKey());
+            for (int i = 0; i < owners.size(); i++) {
+                Waypoint waypoint = entry.getValue().get(i);
+                cellTours[oldSize + i] = owners.get(i);
+                east[oldSize + i] = waypoint.east;
+                north[oldSize + i] = waypoint.north;
+            }
+            cells.put(entry.getKey(), new Cell(cellTours, east, north));
+        }
+    }
+
+    /**
+     * Removes every waypoint of a tour that was previously added.
+     * @param tour The tour to remove.
+     */
+    public synchronized void remove(Tour tour) {
+        for (Waypoint waypoint : tour.waypoints) {
+            long key = key(cell(waypoint.east), cell(waypoint.north));
+            Cell old = cells.get(key);
+            if (old == null) continue;
+            int kept = 0;
+            for (Tour t : old.tours) {
+                if (t != tour) kept++;
+            }
+            if (kept == old.tours.length) continue;
+            if (kept == 0) {
+                cells.remove(key);
+                continue;
+            }
+            Tour[] tours = new Tour[kept];
+            double[] east = new double[kept];
+            double[] north = new double[kept];
+            int j = 0;
+            for (int i = 0; i < old.tours.length; i++) {
+                if (old.tours[i] != tour) {
+                    tours[j] = old.tours[i];
+                    east[j] = old.east[i];
+                    north[j] = old.north[i];
+                    j++;
+                }
+            }
+            cells.put(key, new Cell(tours, east, north));
+        }
+    }
+
+    /**
+     * Finds the tours closest to a location.
+     * @param e The easting of the location.
+     * @param n The northing of the location.
+     * @param k The maximum number of tours to return.
+     * @return Up to k tours, closest first.
+     */
+    public List<Hit> nearest(double e, double n, int k) {
+        if (k <= 0 || cells.isEmpty()) return Collections.emptyList();
+        int cx = cell(e);
+        int cy = cell(n);
+        int loX = minX, hiX = maxX, loY = minY, hiY = maxY;
+        // Rings closer than the occupied area are empty, so start at the first one that can hold a waypoint.
+        int first = Math.max(0, Math.max(Math.max(loX - cx, cx - hiX), Math.max(loY - cy, cy - hiY)));
+        int last = Math.max(Math.max(cx - loX, hiX - cx), Math.max(cy - loY, hiY - cy));
+
+        Map<Tour, Double> best = new HashMap<>();
+        List<Hit> sorted = Collections.emptyList();
+        for (int r = first; r <= last; r++) {
+            for (int x = cx - r; x <= cx + r; x++) {
+                if (x < loX || x > hiX) continue;
+                boolean edge = x == cx - r || x == cx + r;
+                for (int y = cy - r; y <= cy + r; y += edge ? 1 : 2 * r) {
+                    if (y >= loY && y <= hiY) {
+                        scan(cells.get(key(x, y)), e, n, Double.POSITIVE_INFINITY, best);
+                    }
+                    if (r == 0) break;
+                }
+            }
+            if (best.size() >= k) {
+                sorted = sort(best);
+                // Any waypoint outside the rings searched so far is at least r cells away.
+                if (sorted.get(k - 1).distance <= r * cellSize) break;
+            }
+        }
+        if (sorted.size() != best.size()) sorted = sort(best);
+        return sorted.size() > k ? sorted.subList(0, k) : sorted;
+    }
+
+    /**
+     * Finds all tours that pass within a distance of a location.
+     * @param e The easting of the location.
+     * @param n The northing of the location.
+     * @param radius The maximum distance. A negative or NaN radius finds nothing.
+     * @return The matching tours, closest first.
+     */
+    public List<Hit> within(double e, double n, double radius) {
+        if (!(radius >= 0) || cells.isEmpty()) return Collections.emptyList();
+        Map<Tour, Double> best = new HashMap<>();
+        int loX = Math.max(minX, cell(e - radius)), hiX = Math.min(maxX, cell(e + radius));
+        int loY = Math.max(minY, cell(n - radius)), hiY = Math.min(maxY, cell(n + radius));
+        for (int x = loX; x <= hiX; x++) {
+            for (int y = loY; y <= hiY; y++) {
+                scan(cells.get(key(x, y)), e, n, radius * radius, best);
+            }
+        }
+        return sort(best);
+    }
+
+    private static void scan(Cell cell, double e, double n, double limitSquared, Map<Tour, Double> best) {
+        if (cell == null) return;
+        for (int i = 0; i < cell.tours.length; i++) {
+            double de = cell.east[i] - e;
+            double dn = cell.north[i] - n;
+            double d = de * de + dn * dn;
+            if (d > limitSquared) continue;
+            Double previous = best.get(cell.tours[i]);
+            if (previous == null || d < previous) {
+                best.put(cell.tours[i], d);
+            }
+        }
+    }
+
+    private static List<Hit> sort(Map<Tour, Double> best) {
+        List<Hit> hits = new ArrayList<>(best.size());
+        for (Map.Entry<Tour, Double> entry : best.entrySet()) {
+            hits.add(new Hit(entry.getKey(), Math.sqrt(entry.getValue())));
+        }
+        hits.sort((a, b) -> Double.compare(a.distance, b.distance));
+        return hits;
+    }
+}
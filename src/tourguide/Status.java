@@ -3,17 +3,22 @@
  */
 package tourguide;
 
+import java.util.Arrays;
+
 /**
  * @author pbj
  * 
- *   type Status := OK | Error String
+ *   type Status := OK | Error Code Params
  * 
  * Usage:
  * 
  *   Status.OK
+ *   new Status.Error(Status.Error.Code.TOUR_NOT_FOUND)
  *   new Status.Error("message")
  *   
  *   Static reference used for OK object, since only ever need one.
+ *   Errors carry a code and parameters, and only build their message when asked for it, so
+ *   rejecting a call costs at most one small allocation, or none for the preallocated errors.
  */
 public abstract class Status {
     
@@ -30,22 +35,84 @@ public abstract class Status {
     }
     
     public static class Error extends Status {
+
+        public enum Code {
+            WRONG_MODE("Incorrect mode, expected %s, got %s."),
+            BROWSE_WHILE_CREATING("Incorrect mode, can't browse while creating new tour."),
+            TOUR_NOT_FOUND("Tour not found."),
+            NO_TOUR_ID("A tour must have an id."),
+            NO_DRAFT("There is no draft to resume."),
+            WAYPOINT_TOO_CLOSE("Waypoint (%s) too close to the last (%s)."),
+            BAD_LOCATION("Waypoint location (%s, %s) is not a finite point."),
+            TOO_MANY_LEGS("Too many leg annotations in tour %s."),
+            NO_WAYPOINTS("Can't create tour without waypoints."),
+            LEGS_NOT_WAYPOINTS("Number of legs must be same as number of waypoints.Legs: %s, Waypoints: %s"),
+            BAD_PAGE_SIZE("Page size must be positive, got %s."),
+            BAD_TOUR_COUNT("Number of tours must be positive, got %s."),
+            BAD_RADIUS("Radius must not be negative, got %s."),
+            NO_SEARCH_TERMS("Search query has no words to find: %s"),
+            JOURNAL_FAILED("Can't record authoring in the journal: %s"),
+            IMPORT_REJECTED("Import rejected, line %s: %s"),
+            /** An error described only by its message. */
+            OTHER("%s");
+
+            private final String format;
+
+            Code(String format) {
+                this.format = format;
+            }
+        }
+
+        public static final Error BROWSE_WHILE_CREATING = new Error(Code.BROWSE_WHILE_CREATING);
+        public static final Error TOUR_NOT_FOUND = new Error(Code.TOUR_NOT_FOUND);
+        public static final Error NO_WAYPOINTS = new Error(Code.NO_WAYPOINTS);
+        public static final Error NO_TOUR_ID = new Error(Code.NO_TOUR_ID);
+        public static final Error NO_DRAFT = new Error(Code.NO_DRAFT);
+
+        private final Code code;
+        private final Object[] params;
         private String message;
-        
+
         public Error(String message) {
+            this.code = Code.OTHER;
+            this.params = new Object[]{message};
             this.message = message;
         }
+
+        public Error(Code code, Object... params) {
+            this.code = code;
+            this.params = params;
+        }
+
+        public Code getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            if (message == null) {
+                message = "ERROR: " + String.format(code.format, params);
+            }
+            return message;
+        }
         
         public boolean equals(Object o) {
+            if (o == this) return true;
             if (o instanceof Error) {
                 Error oE = (Error) o;
-                return message.equals(oE.message);
+                if (code == oE.code && Arrays.equals(params, oE.params)) return true;
+                // Only an OTHER error can have the same message as an error with another code.
+                return (code == Code.OTHER || oE.code == Code.OTHER || code == oE.code)
+                        && getMessage().equals(oE.getMessage());
             } else {
                 return false;
             }
         }
+
+        public int hashCode() {
+            return getMessage().hashCode();
+        }
         
-        public String toString() {return "Status.Error(" + message + ")"; }
+        public String toString() {return "Status.Error(" + getMessage() + ")"; }
     }
 
 }
@@ -0,0 +1,359 @@
+package tourguide;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * An inverted index from the words of tour titles and annotations to the tours containing them,
+ * used to search the catalog.
+ *
+ * Text is split into terms at every character that is not a letter or digit, and terms are
+ * compared ignoring case. Each tour carries a weight for each of its terms: a word in the title
+ * counts {@value #TITLE_WEIGHT}, in the tour annotation {@value #ANNOTATION_WEIGHT}, and in a
+ * waypoint or leg annotation {@value #STAGE_WEIGHT}, summed over every occurrence. Default
+ * annotations are not indexed.
+ *
+ * Terms are kept in order, so prefix queries read one contiguous range of them. The postings of
+ * each term are kept both by tour, to score a tour against the other terms of a query, and in rank
+ * order, so a page of results for one term is read straight off the front. All of these are
+ * concurrent collections updated in place, so queries need no locking and may run concurrently
+ * with updates.
+ */
+public class TextIndex {
+
+    public static final int TITLE_WEIGHT = 4;
+    public static final int ANNOTATION_WEIGHT = 2;
+    public static final int STAGE_WEIGHT = 1;
+
+    /**
+     * A tour found by a query, with the sum of the weights of the terms it matched.
+     */
+    public static final class Hit {
+        public final Tour tour;
+        public final int score;
+
+        Hit(Tour tour, int score) {
+            this.tour = tour;
+            this.score = score;
+        }
+    }
+
+    // Highest scores first, ties in order of id, so pages of results are stable.
+    static final Comparator<Hit> RANKING = (a, b) -> compare(a.score, a.tour.id, b.score, b.tour.id);
+
+    /**
+     * The tours containing one term, or for a prefix, any of the terms starting with it.
+     */
+    private static final class Postings {
+        final Map<Tour, Integer> weights;
+        // The same tours in rank order, or null for a merged prefix.
+        final NavigableSet<Hit> ranked;
+        // The highest weight of any tour, once the postings are read by a query.
+        int maxWeight;
+
+        Postings(Map<Tour, Integer> weights, NavigableSet<Hit> ranked) {
+            this.weights = weights;
+            this.ranked = ranked;
+        }
+    }
+
+    private final NavigableMap<String, Postings> postings = new ConcurrentSkipListMap<>();
+
+    // Terms of each annotation text, which tours repeat far more often than titles. Like the
+    // annotation pool, an entry goes once no tour holds its annotation. Guarded by this index.
+    private final Map<Annotation, List<String>> annotationTerms = new WeakHashMap<>();
+
+    /**
+     * Indexes the title and annotations of a tour.
+     * @param tour The tour to add.
+     */
+    public void add(Tour tour) {
+        addAll(Collections.singletonList(tour));
+    }
+
+    /**
+     * Indexes the title and annotations of several tours.
+     * @param tours The tours to add.
+     */
+    public synchronized void addAll(Collection<Tour> tours) {
+        for (Tour tour : tours) {
+            for (Map.Entry<String, Integer> term : weights(tour).entrySet()) {
+                Postings containing = postings.computeIfAbsent(term.getKey(),
+                        k -> new Postings(new ConcurrentHashMap<>(), new ConcurrentSkipListSet<>(RANKING)));
+                containing.weights.put(tour, term.getValue());
+                containing.ranked.add(new Hit(tour, term.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Removes a tour that was previously added.
+     * @param tour The tour to remove.
+     */
+    public synchronized void remove(Tour tour) {
+        for (String term : weights(tour).keySet()) {
+            Postings containing = postings.get(term);
+            if (containing == null) continue;
+            Integer weight = containing.weights.remove(tour);
+            if (weight == null) continue;
+            containing.ranked.remove(new Hit(tour, weight));
+            if (containing.weights.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+    }
+
+    /**
+     * @return The number of distinct terms indexed.
+     */
+    public int terms() {
+        return postings.size();
+    }
+
+    private Map<String, Integer> weights(Tour tour) {
+        Map<String, Integer> weights = new HashMap<>();
+        addWeights(tour.title, TITLE_WEIGHT, weights);
+        addWeights(tour.annotation, ANNOTATION_WEIGHT, weights);
+        for (Waypoint waypoint : tour.waypoints) {
+            addWeights(waypoint.annotation, STAGE_WEIGHT, weights);
+        }
+        for (Annotation annotation : tour.legAnnotations) {
+            addWeights(annotation, STAGE_WEIGHT, weights);
+        }
+        return weights;
+    }
+
+    private void addWeights(Annotation annotation, int weight, Map<String, Integer> weights) {
+        if (annotation == null || annotation.isDefault()) return;
+        addWeights(annotationTerms.computeIfAbsent(annotation, a -> terms(a.toString(), false)), weight, weights);
+    }
+
+    private static void addWeights(String text, int weight, Map<String, Integer> weights) {
+        if (text != null) {
+            addWeights(terms(text, false), weight, weights);
+        }
+    }
+
+    private static void addWeights(List<String> terms, int weight, Map<String, Integer> weights) {
+        for (int i = 0; i < terms.size(); i++) {
+            weights.merge(terms.get(i), weight, Integer::sum);
+        }
+    }
+
+    /**
+     * Splits text into terms.
+     * @param text The text.
+     * @param query True to keep a '*' directly after a term, marking it as a prefix.
+     * @return The terms, in lower case.
+     */
+    static List<String> terms(String text, boolean query) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                term.append(c);
+                continue;
+            }
+            if (term.length() > 0) {
+                if (query && c == '*') term.append('*');
+                terms.add(term.toString().toLowerCase(Locale.ROOT));
+                term.setLength(0);
+            }
+        }
+        if (term.length() > 0) {
+            terms.add(term.toString().toLowerCase(Locale.ROOT));
+        }
+        return terms;
+    }
+
+    /**
+     * @param query The query.
+     * @return Whether the query has any terms to search for.
+     */
+    public static boolean hasTerms(String query) {
+        return !terms(query, true).isEmpty();
+    }
+
+    /**
+     * Finds the tours that match every term of a query, best first.
+     *
+     * A term followed by '*' matches any term starting with it, scoring the best of those terms,
+     * so "cast* wall" finds tours mentioning a castle or castles and a wall. Matching tours are
+     * ranked by score, and then by id.
+     *
+     * A page of results for a single term costs O(log N + limit). Otherwise the cost depends on
+     * the number of tours matching the rarest term of the query and the number of terms a prefix
+     * expands to, not on the size of the catalog.
+     * @param query The query.
+     * @param after The last tour on the previous page of results, or null to start from the best.
+     *              If that tour no longer matches, results start from the best.
+     * @param limit The maximum number of tours to return.
+     * @return Up to limit tours, following after in rank order.
+     */
+    public List<Hit> search(String query, Tour after, int limit) {
+        List<Postings> matches = matches(query);
+        if (matches == null || limit <= 0) return Collections.emptyList();
+        Hit cursor = null;
+        if (after != null) {
+            int score = score(after, matches, 0);
+            if (score >= 0) cursor = new Hit(after, score);
+        }
+        return search(matches, cursor, limit);
+    }
+
+    /**
+     * Finds the tours matching a query that rank after a given hit, which may be a tour held by
+     * another index, so the partitions of a catalog can be searched a page at a time.
+     * @param query The query.
+     * @param cursor The last hit on the previous page, or null to start from the best.
+     * @param limit The maximum number of tours to return.
+     * @return Up to limit tours, following the cursor in rank order.
+     */
+    List<Hit> searchAfter(String query, Hit cursor, int limit) {
+        List<Postings> matches = matches(query);
+        return matches == null || limit <= 0 ? Collections.<Hit>emptyList() : search(matches, cursor, limit);
+    }
+
+    /**
+     * @return The hit for a tour in this index, or null if it doesn't match the query.
+     */
+    Hit hit(String query, Tour tour) {
+        List<Postings> matches = matches(query);
+        int score = matches == null ? -1 : score(tour, matches, 0);
+        return score < 0 ? null : new Hit(tour, score);
+    }
+
+    /**
+     * @return The postings matching each term of a query, rarest first, or null if any term
+     *         matches nothing.
+     */
+    private List<Postings> matches(String query) {
+        List<String> terms = terms(query, true);
+        if (terms.isEmpty()) return null;
+        List<Postings> matches = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Postings match = term.endsWith("*")
+                    ? prefixMatches(term.substring(0, term.length() - 1))
+                    : rankedMatches(postings.get(term));
+            if (match == null) return null;
+            matches.add(match);
+        }
+        matches.sort(Comparator.comparingInt(match -> match.weights.size()));
+        return matches;
+    }
+
+    private static List<Hit> search(List<Postings> matches, Hit cursor, int limit) {
+        // Candidates are drawn from the rarest term and looked up in the others.
+        Postings rarest = matches.get(0);
+        int othersMaxWeight = 0;
+        for (int i = 1; i < matches.size(); i++) {
+            othersMaxWeight += matches.get(i).maxWeight;
+        }
+
+        // Keep only the best limit hits ranked after the cursor, worst at the head of the queue.
+        PriorityQueue<Hit> page = new PriorityQueue<>(Math.min(limit, 64) + 1, RANKING.reversed());
+        if (rarest.ranked != null) {
+            Iterable<Hit> candidates = cursor != null && matches.size() == 1
+                    ? rarest.ranked.tailSet(cursor, false)
+                    : rarest.ranked;
+            for (Hit candidate : candidates) {
+                if (page.size() == limit) {
+                    // Candidates come in rank order, so with one term the page is complete, and with
+                    // more, no later candidate can score above the worst on the page.
+                    if (matches.size() == 1 || candidate.score + othersMaxWeight < page.peek().score) break;
+                }
+                offer(candidate.tour, candidate.score, matches, cursor, limit, page);
+            }
+        } else {
+            for (Map.Entry<Tour, Integer> candidate : rarest.weights.entrySet()) {
+                offer(candidate.getKey(), candidate.getValue(), matches, cursor, limit, page);
+            }
+        }
+        List<Hit> sorted = new ArrayList<>(page);
+        sorted.sort(RANKING);
+        return sorted;
+    }
+
+    /**
+     * Adds a tour matching the first term to the page, if it matches the others and ranks high enough.
+     * A hit is only allocated if it makes the page.
+     */
+    private static void offer(Tour tour, int weight, List<Postings> matches, Hit cursor,
+                              int limit, PriorityQueue<Hit> page) {
+        int score = score(tour, matches, 1);
+        if (score < 0) return;
+        score += weight;
+        if (cursor != null && compare(score, tour.id, cursor.score, cursor.tour.id) <= 0) return;
+        if (page.size() == limit) {
+            Hit worst = page.peek();
+            if (compare(score, tour.id, worst.score, worst.tour.id) >= 0) return;
+            page.poll();
+        }
+        page.add(new Hit(tour, score));
+    }
+
+    /**
+     * @return The sum of the weights of a tour in the matches from index first on,
+     *         or -1 if it is missing from any of them.
+     */
+    private static int score(Tour tour, List<Postings> matches, int first) {
+        int score = 0;
+        for (int i = first; i < matches.size(); i++) {
+            Integer weight = matches.get(i).weights.get(tour);
+            if (weight == null) return -1;
+            score += weight;
+        }
+        return score;
+    }
+
+    /**
+     * @return Negative if the first hit ranks before the second, positive if after.
+     */
+    private static int compare(int score, String id, int otherScore, String otherId) {
+        return score != otherScore ? Integer.compare(otherScore, score) : id.compareTo(otherId);
+    }
+
+    /**
+     * @return The postings of a term as read by a query, or null if there are none.
+     */
+    private static Postings rankedMatches(Postings tours) {
+        if (tours == null) return null;
+        Iterator<Hit> best = tours.ranked.iterator();
+        if (!best.hasNext()) return null;
+        Postings match = new Postings(tours.weights, tours.ranked);
+        match.maxWeight = best.next().score;
+        return match;
+    }
+
+    private Postings prefixMatches(String prefix) {
+        Collection<Postings> expanded = postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+        if (expanded.size() == 1) {
+            return rankedMatches(expanded.iterator().next());
+        }
+        Map<Tour, Integer> best = new HashMap<>();
+        for (Postings tours : expanded) {
+            for (Map.Entry<Tour, Integer> entry : tours.weights.entrySet()) {
+                best.merge(entry.getKey(), entry.getValue(), Math::max);
+            }
+        }
+        if (best.isEmpty()) return null;
+        Postings match = new Postings(best, null);
+        match.maxWeight = Collections.max(best.values());
+        return match;
+    }
+}
@@ -1,6 +1,7 @@
 package tourguide;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Tour {
@@ -11,12 +12,54 @@ public class Tour {
     public List<Annotation> legAnnotations = new ArrayList<>();
     public List<Waypoint> waypoints = new ArrayList<>();
 
+    // The compiled form used for following, set by freeze when the tour is added to a catalog.
+    FollowPlan plan;
+
+    // For a tour read from a catalog file, the file holding its details until they are decoded.
+    volatile CatalogFile source;
+    int sourceOffset;
+
     public Tour(String id, String title, Annotation annotation) {
         this.id = id;
         this.title = title;
         this.annotation = annotation;
     }
 
+    /**
+     * Creates a tour whose annotation and waypoints are still to be decoded from a catalog file.
+     */
+    Tour(String id, String title, CatalogFile source, int sourceOffset) {
+        this.id = id;
+        this.title = title;
+        this.source = source;
+        this.sourceOffset = sourceOffset;
+    }
+
+    /**
+     * @return The compiled form used for following, or null until the tour is added to a catalog.
+     */
+    public FollowPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Compiles this finished tour into its {@link FollowPlan} and makes its waypoint and leg
+     * lists read-only, as it is about to be published and shared between sessions.
+     * @param waypointRadius The distance within which a follower is at a waypoint.
+     */
+    void freeze(double waypointRadius) {
+        waypoints = Collections.unmodifiableList(new ArrayList<>(waypoints));
+        legAnnotations = Collections.unmodifiableList(new ArrayList<>(legAnnotations));
+        plan = new FollowPlan(this, waypointRadius);
+    }
+
+    /**
+     * @return False if the details of this tour are still to be decoded from a catalog file.
+     */
+    public boolean isLoaded() {
+        return source == null;
+    }
+
     @Override
     public String toString() {
         return "Tour{" +
@@ -0,0 +1,387 @@
+package tourguide;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The collection of finished tours, shared by any number of controller sessions.
+ * Safe for concurrent use: sessions on different threads may add and look up tours at the same time.
+ * Tours are only published here once they are complete and are not modified afterwards.
+ *
+ * Each change is published in one step: a query sees all of an {@link #addAll} or none of it.
+ *
+ * The tours themselves are kept by a {@link TourStore}: a {@link LocalTourStore} here, or the
+ * nodes of a {@link PartitionedCatalog}. This class adds what every catalog has whatever its
+ * store: the settings, listeners, journal and metrics of its sessions.
+ */
+public class TourCatalog {
+
+    private final TourStore store;
+
+    // Whether FOLLOW mode output uses Displacement.fastBearing.
+    private volatile boolean fastMath;
+
+    // Whether FOLLOW mode output ends with a Chunk.FollowProgress.
+    private volatile boolean followProgress;
+
+    // Distance either side of the active leg a follower may stray before being off route.
+    private volatile Corridor corridor = Corridor.NONE;
+
+    // Records the authoring done by sessions created after it was set, if any.
+    private volatile TourJournal journal;
+
+    // Records the calls of sessions created after it was set, if any.
+    private volatile ControllerMetrics metrics;
+
+    // Notified of every tour added.
+    private final Listeners listeners = new Listeners();
+
+    // Incremented whenever a setting that shapes session output changes.
+    private final AtomicInteger settingsVersion = new AtomicInteger();
+
+    private final double waypointRadius;
+    private final double waypointSeparation;
+
+    /**
+     * Creates an empty catalog.
+     * @param waypointRadius The distance within which a follower is considered to be at a waypoint.
+     * @param waypointSeparation The minimum distance between consecutive waypoints of a tour.
+     */
+    public TourCatalog(double waypointRadius, double waypointSeparation) {
+        this(waypointRadius, waypointSeparation, new LocalTourStore(waypointRadius));
+    }
+
+    /**
+     * Creates a catalog whose tours are kept by a store, which must compile tours with the same radius.
+     */
+    TourCatalog(double waypointRadius, double waypointSeparation, TourStore store) {
+        this.waypointRadius = waypointRadius;
+        this.waypointSeparation = waypointSeparation;
+        this.store = store;
+    }
+
+    /**
+     * Creates a new session on this catalog. Each session holds the state of a single user and
+     * must only be used by one thread at a time, but any number of sessions may share the catalog.
+     * @return A new controller in BROWSE mode.
+     */
+    public Controller newSession() {
+        ControllerMetrics metrics = this.metrics;
+        ControllerImp session = new ControllerImp(this);
+        return metrics == null ? session : new InstrumentedController(session, metrics);
+    }
+
+    /**
+     * @return The journal that new sessions record their authoring in, or null if there is none.
+     */
+    public TourJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Sets the journal that sessions created from now on record their authoring in.
+     * Normally called by {@link TourJournal#open}.
+     */
+    public void setJournal(TourJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Registers a listener for {@link TourEvent.TourAdded} events, fired by {@link #add}.
+     * @param listener The listener.
+     * @param executor The executor to deliver events through, or null to call the listener directly
+     *                 on the thread adding the tour.
+     */
+    public void addListener(TourListener listener, Executor executor) {
+        listeners.add(listener, executor);
+    }
+
+    public void removeListener(TourListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The metrics that new sessions record their calls in, or null if there are none.
+     */
+    public ControllerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that sessions created from now on record their calls in.
+     * Normally called by {@link ControllerMetrics#attach}.
+     */
+    public void setMetrics(ControllerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public boolean isFastMath() {
+        return fastMath;
+    }
+
+    /**
+     * Selects the bearing calculation used for FOLLOW mode output.
+     * @param fastMath True to use {@link Displacement#fastBearing}, false for the exact calculation.
+     */
+    public void setFastMath(boolean fastMath) {
+        this.fastMath = fastMath;
+        settingsVersion.incrementAndGet();
+    }
+
+    public boolean isFollowProgress() {
+        return followProgress;
+    }
+
+    /**
+     * Selects whether FOLLOW mode output ends with a {@link Chunk.FollowProgress} for the whole tour.
+     * Off by default, so the output keeps its original shape.
+     * @param followProgress True to report progress.
+     */
+    public void setFollowProgress(boolean followProgress) {
+        this.followProgress = followProgress;
+        settingsVersion.incrementAndGet();
+    }
+
+    /**
+     * A corridor width and its square, as used by the off-route check. Replaced as a whole, so a
+     * session never checks against one width and reports another.
+     */
+    static final class Corridor {
+        static final Corridor NONE = new Corridor(0.0);
+
+        final double width;
+        final double widthSquared;
+
+        Corridor(double width) {
+            this.width = width;
+            this.widthSquared = width * width;
+        }
+    }
+
+    public double getCorridorWidth() {
+        return corridor.width;
+    }
+
+    Corridor getCorridor() {
+        return corridor;
+    }
+
+    /**
+     * Sets how far a follower may stray from the leg they are on before FOLLOW mode output
+     * includes a {@link Chunk.OffRoute}. Takes effect from each session's next getOutput, which
+     * checks the last fix against the new width.
+     * @param corridorWidth The distance either side of the leg, or 0 to disable the check, which is the default.
+     */
+    public void setCorridorWidth(double corridorWidth) {
+        if (!(corridorWidth >= 0.0)) {
+            throw new IllegalArgumentException("Corridor width " + corridorWidth + " is negative or not a number.");
+        }
+        this.corridor = corridorWidth == 0.0 ? Corridor.NONE : new Corridor(corridorWidth);
+        settingsVersion.incrementAndGet();
+    }
+
+    /**
+     * @return A number that changes whenever an output setting, such as {@link #setFastMath}, changes.
+     */
+    public int settingsVersion() {
+        return settingsVersion.get();
+    }
+
+    public double getWaypointRadius() {
+        return waypointRadius;
+    }
+
+    public double getWaypointSeparation() {
+        return waypointSeparation;
+    }
+
+    /**
+     * Finds a tour by its id.
+     * @param id The id of the tour, may be null.
+     * @return The tour, or null if there is no tour with that id.
+     */
+    public Tour get(String id) {
+        return store.get(id);
+    }
+
+    /**
+     * Publishes a finished tour, replacing any existing tour with the same id.
+     * The tour is compiled into its {@link FollowPlan} before it becomes visible.
+     * Additions are serialised with each other, and queries that overlap one wait for it. Listeners
+     * are notified after the tour is published, outside the lock.
+     * @param tour The tour to add. Must not be modified afterwards.
+     */
+    public void add(Tour tour) {
+        store.add(tour);
+        fireAdded(Collections.singletonList(tour));
+    }
+
+    /**
+     * Publishes several finished tours in one step, replacing any existing tours with the same ids.
+     * The catalog version changes once, and the spatial index copies each affected cell once,
+     * so this is much cheaper than adding the tours one at a time. Queries see either none of the
+     * tours or all of them; those that overlap the publication wait for it to finish.
+     * @param newTours The tours to add, which must have distinct ids. Tours without a plan are compiled here.
+     */
+    public void addAll(Collection<Tour> newTours) {
+        store.addAll(newTours);
+        fireAdded(newTours);
+    }
+
+    /**
+     * Sends a {@link TourEvent.TourAdded} event for each tour to this catalog's listeners.
+     * Called without holding the store's locks.
+     */
+    private void fireAdded(Collection<Tour> added) {
+        if (!listeners.isEmpty()) {
+            for (Tour tour : added) {
+                listeners.fire(new TourEvent.TourAdded(tour.id, tour.title));
+            }
+        }
+    }
+
+    /**
+     * Takes over a tour moved from another catalog, as is, without firing an event.
+     * Tours not yet decoded stay that way.
+     */
+    void adopt(Tour tour) {
+        store.adopt(tour);
+    }
+
+    /**
+     * Withdraws a tour, as when it moves to another catalog.
+     * @param id The id of the tour.
+     * @return The tour removed, or null if there was none.
+     */
+    Tour remove(String id) {
+        return store.remove(id);
+    }
+
+    /**
+     * Publishes a tour read from a catalog file without decoding its details.
+     * @param tour The tour, as created by {@link CatalogFile#load}.
+     */
+    void addUnloaded(Tour tour) {
+        store.addUnloaded(tour);
+    }
+
+    /**
+     * Adds the tours of a catalog file. Only their ids and titles are decoded up front.
+     * @param path The catalog file.
+     * @return The number of tours read.
+     * @throws IOException If the file can't be read.
+     */
+    public int load(Path path) throws IOException {
+        return CatalogFile.load(path, this);
+    }
+
+    /**
+     * Writes every tour to a catalog file.
+     * @param path The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(Path path) throws IOException {
+        CatalogFile.write(loadedTours(), path);
+    }
+
+    /**
+     * @return Every tour, decoded, in order of id.
+     */
+    List<Tour> loadedTours() {
+        return store.loadedTours();
+    }
+
+    /**
+     * @return A number that changes whenever a tour is added or replaced.
+     */
+    public long version() {
+        return store.version();
+    }
+
+    /**
+     * Finds the tours that pass closest to a location.
+     * @param east The easting of the location.
+     * @param north The northing of the location.
+     * @param count The maximum number of tours to return.
+     * @return Up to count tours, closest first.
+     */
+    public List<SpatialIndex.Hit> nearestTours(double east, double north, int count) {
+        return store.nearestTours(east, north, count);
+    }
+
+    /**
+     * Finds the tours that pass within a distance of a location.
+     * @param east The easting of the location.
+     * @param north The northing of the location.
+     * @param radius The maximum distance.
+     * @return The matching tours, closest first.
+     */
+    public List<SpatialIndex.Hit> toursWithin(double east, double north, double radius) {
+        return store.toursWithin(east, north, radius);
+    }
+
+    /**
+     * Finds the tours whose titles and annotations match a query, best match first.
+     * @param query The query, as described by {@link TextIndex#search}.
+     * @param afterId The id of the last tour on the previous page, or null to start from the best match.
+     * @param limit The maximum number of tours to return.
+     * @return Up to limit tours, following afterId in rank order.
+     */
+    public List<Tour> search(String query, String afterId, int limit) {
+        List<TextIndex.Hit> hits = store.search(query, afterId, limit);
+        List<Tour> page = new ArrayList<>(hits.size());
+        for (TextIndex.Hit hit : hits) {
+            page.add(hit.tour);
+        }
+        return page;
+    }
+
+    /**
+     * @return The hit for a tour in this catalog's text index, or null if it isn't here or doesn't match.
+     */
+    TextIndex.Hit searchHit(String query, String id) {
+        return store.searchHit(query, id);
+    }
+
+    /**
+     * Finds the tours matching a query that rank after a hit, which may be from another catalog.
+     */
+    List<TextIndex.Hit> searchHits(String query, TextIndex.Hit cursor, int limit) {
+        return store.searchHits(query, cursor, limit);
+    }
+
+    /**
+     * @return A read-only, weakly consistent view of all tours in the catalog, in order of id.
+     *         Unlike the queries, iterating it may see part of a change in progress.
+     */
+    public Collection<Tour> tours() {
+        return store.tours();
+    }
+
+    /**
+     * Reads one page of the tours in order of id. Costs O(log N + limit) however large the catalog.
+     * @param afterId The id of the last tour on the previous page, or null to start from the beginning.
+     * @param limit The maximum number of tours to return.
+     * @return The tours following afterId, in order of id.
+     */
+    public List<Tour> toursAfter(String afterId, int limit) {
+        return store.toursAfter(afterId, limit);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * @return The rough heap cost of the tours, as estimated by {@link ControllerMetrics}.
+     */
+    long estimatedBytes() {
+        return store.estimatedBytes();
+    }
+}
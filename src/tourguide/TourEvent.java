@@ -0,0 +1,88 @@
+package tourguide;
+
+/**
+ * Something that happened in a controller session or its catalog, delivered to a {@link TourListener}.
+ * Events are immutable, so they can be handed to other threads.
+ */
+public abstract class TourEvent {
+
+    /**
+     * The follower reached a waypoint of the tour being followed.
+     */
+    public static final class WaypointReached extends TourEvent {
+        public final String tourId;
+
+        /**
+         * The index of the waypoint reached. The stage is now one more than this.
+         */
+        public final int waypoint;
+
+        /**
+         * The location fix at which the waypoint was found to be reached.
+         */
+        public final double east, north;
+
+        public WaypointReached(String tourId, int waypoint, double east, double north) {
+            this.tourId = tourId;
+            this.waypoint = waypoint;
+            this.east = east;
+            this.north = north;
+        }
+
+        @Override
+        public String toString() {
+            return "WaypointReached(" + tourId + ", " + waypoint + ", e:" + east + ", n:" + north + ")";
+        }
+    }
+
+    /**
+     * The follower reached the last waypoint of the tour being followed.
+     */
+    public static final class TourFinished extends TourEvent {
+        public final String tourId;
+
+        public TourFinished(String tourId) {
+            this.tourId = tourId;
+        }
+
+        @Override
+        public String toString() {
+            return "TourFinished(" + tourId + ")";
+        }
+    }
+
+    /**
+     * The session switched to another mode.
+     */
+    public static final class ModeChanged extends TourEvent {
+        public final Controller.MODE from, to;
+
+        public ModeChanged(Controller.MODE from, Controller.MODE to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return "ModeChanged(" + from + " -> " + to + ")";
+        }
+    }
+
+    /**
+     * A finished tour was published to the catalog, by this session or any other.
+     */
+    public static final class TourAdded extends TourEvent {
+        public final String tourId;
+        public final String title;
+
+        public TourAdded(String tourId, String title) {
+            this.tourId = tourId;
+            this.title = title;
+        }
+
+        @Override
+        public String toString() {
+            return "TourAdded(" + tourId + ", " + title + ")";
+        }
+    }
+}
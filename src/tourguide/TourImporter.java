@@ -0,0 +1,230 @@
+package tourguide;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Logger;
+
+/**
+ * Imports finished tours in bulk from a text feed, without going through the authoring calls of a session.
+ *
+ * The feed is read line by line and split into batches of tours, which are parsed, validated and
+ * compiled in parallel on a fork-join pool. Tours are held to the same rules as when authored
+ * through a {@link Controller}. The import is all or nothing: if any tour is rejected, no tour is
+ * added; otherwise all are published with {@link TourCatalog#addAll}. Imported tours are not
+ * journaled; save the catalog to a {@link CatalogFile} to keep them.
+ *
+ * Format, one record per line, fields separated by commas:
+ * <pre>
+ *   TOUR,id,title,annotation
+ *   LEG,annotation                   (optional, the leg leading to the next waypoint)
+ *   WAYPOINT,east,north,annotation
+ *   END
+ * </pre>
+ * A field may be quoted with double quotes, to hold commas, with "" for a quote. In any field, \n
+ * stands for a newline and \\ for a backslash. An empty annotation is the default annotation.
+ * Blank lines and lines starting with # are ignored.
+ */
+public class TourImporter {
+    private static final Logger logger = Log.LOGGER;
+
+    // Tours parsed by one task; enough to outweigh the cost of forking.
+    private static final int TOURS_PER_TASK = 64;
+
+    private final TourCatalog catalog;
+    private final ForkJoinPool pool;
+
+    public TourImporter(TourCatalog catalog) {
+        this(catalog, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param catalog The catalog to import into.
+     * @param pool The pool to parse on.
+     */
+    public TourImporter(TourCatalog catalog, ForkJoinPool pool) {
+        this.catalog = catalog;
+        this.pool = pool;
+    }
+
+    /**
+     * Imports every tour in a feed.
+     * @param reader The feed.
+     * @return OK if all tours were imported, or an error describing the first rejected line,
+     *         in which case no tours were imported.
+     * @throws IOException If the feed can't be read.
+     */
+    public Status importTours(Reader reader) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        List<ForkJoinTask<Batch>> tasks = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        int firstLine = 1, lineNumber = 0, toursInBatch = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.startsWith("TOUR")) {
+                if (toursInBatch == TOURS_PER_TASK) {
+                    tasks.add(submit(lines, firstLine));
+                    lines = new ArrayList<>();
+                    firstLine = lineNumber;
+                    toursInBatch = 0;
+                }
+                toursInBatch++;
+            }
+            lines.add(line);
+        }
+        tasks.add(submit(lines, firstLine));
+
+        // Later tours with the same id replace earlier ones, as if authored in order.
+        Map<String, Tour> imported = new LinkedHashMap<>();
+        for (ForkJoinTask<Batch> task : tasks) {
+            Batch batch = task.join();
+            if (batch.error != null) {
+                for (ForkJoinTask<Batch> other : tasks) {
+                    other.cancel(false);
+                }
+                logger.fine(batch.error::getMessage);
+                return batch.error;
+            }
+            for (Tour tour : batch.tours) {
+                imported.remove(tour.id);
+                imported.put(tour.id, tour);
+            }
+        }
+        catalog.addAll(imported.values());
+        logger.info(() -> "TOURS IMPORTED: " + imported.size());
+        return Status.OK;
+    }
+
+    private ForkJoinTask<Batch> submit(List<String> lines, int firstLine) {
+        return pool.submit(() -> parse(lines, firstLine));
+    }
+
+    private static final class Batch {
+        final List<Tour> tours = new ArrayList<>();
+        Status.Error error;
+    }
+
+    private Batch parse(List<String> lines, int firstLine) {
+        Batch batch = new Batch();
+        double separation = catalog.getWaypointSeparation();
+        double radius = catalog.getWaypointRadius();
+        Tour tour = null;
+        for (int i = 0; i < lines.size(); i++) {
+            int lineNumber = firstLine + i;
+            String line = lines.get(i);
+            if (line.isBlank() || line.startsWith("#")) continue;
+            List<String> fields = split(line);
+            Status status = Status.OK;
+            try {
+                switch (fields.get(0)) {
+                    case "TOUR":
+                        if (tour != null) {
+                            return reject(batch, lineNumber, "TOUR before END of tour " + tour.id);
+                        }
+                        status = TourRules.checkId(field(fields, 1));
+                        if (status == Status.OK) {
+                            tour = new Tour(field(fields, 1), field(fields, 2), annotation(fields, 3));
+                        }
+                        break;
+                    case "LEG":
+                        if (tour == null) return reject(batch, lineNumber, "LEG outside a tour");
+                        status = TourRules.checkLeg(tour);
+                        if (status == Status.OK) {
+                            tour.legAnnotations.add(annotation(fields, 1));
+                        }
+                        break;
+                    case "WAYPOINT": {
+                        if (tour == null) return reject(batch, lineNumber, "WAYPOINT outside a tour");
+                        double east = Double.parseDouble(field(fields, 1));
+                        double north = Double.parseDouble(field(fields, 2));
+                        Annotation annotation = annotation(fields, 3);
+                        status = TourRules.checkWaypoint(tour, east, north, annotation, separation);
+                        if (status == Status.OK) {
+                            tour.waypoints.add(new Waypoint(east, north, annotation));
+                            if (tour.legAnnotations.size() < tour.waypoints.size()) {
+                                tour.legAnnotations.add(Annotation.DEFAULT);
+                            }
+                        }
+                        break;
+                    }
+                    case "END":
+                        if (tour == null) return reject(batch, lineNumber, "END outside a tour");
+                        status = TourRules.checkFinished(tour);
+                        if (status == Status.OK) {
+                            tour.freeze(radius);
+                            batch.tours.add(tour);
+                            tour = null;
+                        }
+                        break;
+                    default:
+                        return reject(batch, lineNumber, "Unknown record " + fields.get(0));
+                }
+            } catch (IllegalArgumentException e) {
+                // Includes NumberFormatException.
+                return reject(batch, lineNumber, e.getMessage());
+            }
+            if (status != Status.OK) {
+                return reject(batch, lineNumber, ((Status.Error) status).getMessage().replaceFirst("^ERROR: ", ""));
+            }
+        }
+        if (tour != null) {
+            return reject(batch, firstLine + lines.size(), "Missing END of tour " + tour.id);
+        }
+        return batch;
+    }
+
+    private static Batch reject(Batch batch, int lineNumber, String reason) {
+        batch.tours.clear();
+        batch.error = new Status.Error(Status.Error.Code.IMPORT_REJECTED, lineNumber, reason);
+        return batch;
+    }
+
+    private static String field(List<String> fields, int i) {
+        if (i >= fields.size()) {
+            throw new IllegalArgumentException(fields.get(0) + " needs " + i + " field(s)");
+        }
+        return fields.get(i);
+    }
+
+    private static Annotation annotation(List<String> fields, int i) {
+        String text = field(fields, i);
+        return text.isEmpty() ? Annotation.DEFAULT : Annotation.of(text);
+    }
+
+    /**
+     * Splits a line into fields, removing quotes and decoding escapes.
+     */
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                field.append(next == 'n' ? '\n' : next);
+            } else if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,384 @@
+package tourguide;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * An append-only journal of tour authoring operations, so that finished tours and drafts survive a crash.
+ *
+ * Sessions append records to an in-memory buffer and return immediately. A background thread writes
+ * the buffer out in batches (group commit), forcing it to disk once per batch if fsync is enabled.
+ * A batch is written when it holds batchSize records or its oldest record is maxDelayMillis old,
+ * so at most that much authoring can be lost in a crash.
+ *
+ * Opening a journal replays it: finished tours are added to the catalog and unfinished drafts are
+ * made available through {@link #drafts()}. The journal keeps growing; saving the catalog to a
+ * {@link CatalogFile} and starting a new journal compacts it.
+ */
+public class TourJournal implements Closeable {
+    private static Logger logger = Log.LOGGER;
+
+    private static final byte START = 1;
+    private static final byte WAYPOINT = 2;
+    private static final byte LEG = 3;
+    private static final byte END = 4;
+    private static final byte RESUME = 5;
+
+    private final FileChannel channel;
+    private final int batchSize;
+    private final long maxDelayMillis;
+    private final boolean fsync;
+    private final Thread writer;
+    private final List<Tour> drafts;
+    // The session each draft was last authored in, which resuming it supersedes.
+    private final Map<Tour, Integer> draftSessions = new IdentityHashMap<>();
+
+    // Guarded by this.
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    private ByteBuffer writing = ByteBuffer.allocate(4096);
+    private int pendingRecords;
+    private long appended, durable;
+    private boolean closed, flushRequested;
+    private IOException failure;
+    private int lastSession;
+
+    private TourJournal(FileChannel channel, int batchSize, long maxDelayMillis, boolean fsync,
+                        Map<Integer, Tour> drafts, int lastSession) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.fsync = fsync;
+        this.drafts = new ArrayList<>(drafts.values());
+        for (Map.Entry<Integer, Tour> draft : drafts.entrySet()) {
+            draftSessions.put(draft.getValue(), draft.getKey());
+        }
+        this.lastSession = lastSession;
+        writer = new Thread(this::writeBatches, "tourguide-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replays a journal into a catalog and opens it for appending. The catalog records all later
+     * authoring by its sessions in the journal.
+     * @param path The journal file, created if it doesn't exist.
+     * @param catalog The catalog to restore finished tours into.
+     * @param batchSize The number of records that triggers a write.
+     * @param maxDelayMillis The longest a record waits before being written.
+     * @param fsync Whether to force each batch to disk.
+     * @return The open journal.
+     * @throws IOException If the journal can't be read or opened.
+     */
+    public static TourJournal open(Path path, TourCatalog catalog, int batchSize, long maxDelayMillis,
+                                   boolean fsync) throws IOException {
+        Map<Integer, Tour> drafts = new HashMap<>();
+        // Sessions whose drafts were resumed by a later session, and whose records are ignored.
+        Set<Integer> superseded = new HashSet<>();
+        int lastSession = 0;
+        long valid = 0;
+        if (Files.exists(path)) {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            try {
+                while (in.hasRemaining()) {
+                    byte type = in.get();
+                    int session = in.getInt();
+                    lastSession = Math.max(lastSession, session);
+                    Tour draft = drafts.get(session);
+                    if (draft == null && type != START && type != RESUME && !superseded.contains(session)) {
+                        throw new IOException("Journal record for session " + session + " without a tour in " + path);
+                    }
+                    switch (type) {
+                        case RESUME: {
+                            int resumed = in.getInt();
+                            superseded.add(resumed);
+                            drafts.remove(resumed);
+                            break;
+                        }
+                        case START:
+                            drafts.put(session, new Tour(readString(in), readString(in), readAnnotation(in)));
+                            break;
+                        case WAYPOINT: {
+                            double east = in.getDouble();
+                            double north = in.getDouble();
+                            Annotation annotation = readAnnotation(in);
+                            if (draft != null) {
+                                draft.waypoints.add(new Waypoint(east, north, annotation));
+                                if (draft.legAnnotations.size() < draft.waypoints.size()) {
+                                    draft.legAnnotations.add(Annotation.DEFAULT);
+                                }
+                            }
+                            break;
+                        }
+                        case LEG: {
+                            Annotation annotation = readAnnotation(in);
+                            if (draft != null) {
+                                draft.legAnnotations.add(annotation);
+                            }
+                            break;
+                        }
+                        case END:
+                            if (draft != null) {
+                                catalog.add(drafts.remove(session));
+                            }
+                            break;
+                        default:
+                            throw new IOException("Corrupt journal record type " + type + " in " + path);
+                    }
+                    valid = in.position();
+                }
+            } catch (BufferUnderflowException e) {
+                // A record torn by a crash; everything before it is intact.
+                logger.warning(() -> "Ignoring incomplete record at end of journal " + path);
+            }
+        }
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        channel.truncate(valid);
+        channel.position(valid);
+        logger.info("JOURNAL REPLAYED: " + catalog.size() + " tours, " + drafts.size() + " drafts");
+
+        TourJournal journal = new TourJournal(channel, batchSize, maxDelayMillis, fsync, drafts, lastSession);
+        catalog.setJournal(journal);
+        return journal;
+    }
+
+    /**
+     * @return The tours that were still being authored when the journal was last written.
+     */
+    public List<Tour> drafts() {
+        return drafts;
+    }
+
+    /**
+     * @return A new session number. Numbers are never reused within a journal.
+     */
+    public synchronized int newSession() {
+        return ++lastSession;
+    }
+
+    /**
+     * The authoring methods below append one record each. They fail once the journal is closed
+     * or a write has failed, so the caller can refuse the operation rather than lose it.
+     * @throws IOException If the journal can no longer record operations.
+     */
+    public void startNewTour(int session, String id, String title, Annotation annotation) throws IOException {
+        byte[] idBytes = encode(id), titleBytes = encode(title), annotationBytes = encode(annotation);
+        synchronized (this) {
+            ByteBuffer out = reserve(5 + sizeOf(idBytes) + sizeOf(titleBytes) + sizeOf(annotationBytes));
+            out.put(START).putInt(session);
+            putString(out, idBytes);
+            putString(out, titleBytes);
+            putString(out, annotationBytes);
+            appended();
+        }
+    }
+
+    public void addWaypoint(int session, double east, double north, Annotation annotation) throws IOException {
+        byte[] annotationBytes = encode(annotation);
+        synchronized (this) {
+            ByteBuffer out = reserve(5 + 16 + sizeOf(annotationBytes));
+            out.put(WAYPOINT).putInt(session).putDouble(east).putDouble(north);
+            putString(out, annotationBytes);
+            appended();
+        }
+    }
+
+    public void addLeg(int session, Annotation annotation) throws IOException {
+        byte[] annotationBytes = encode(annotation);
+        synchronized (this) {
+            ByteBuffer out = reserve(5 + sizeOf(annotationBytes));
+            out.put(LEG).putInt(session);
+            putString(out, annotationBytes);
+            appended();
+        }
+    }
+
+    public synchronized void endNewTour(int session) throws IOException {
+        reserve(5).put(END).putInt(session);
+        appended();
+    }
+
+    /**
+     * Records a draft as authored again in a session, legs first so no default legs are implied.
+     * A draft from {@link #drafts()} is then marked as resumed, so on replay the session it was
+     * authored in is superseded and only the resuming session's copy survives. The mark comes
+     * last, so a crash part way through leaves the old copy rather than losing the draft.
+     * Other sessions authoring a tour with the same id are unaffected.
+     */
+    public synchronized void resumeNewTour(int session, Tour draft) throws IOException {
+        startNewTour(session, draft.id, draft.title, draft.annotation);
+        for (int i = 0; i < draft.legAnnotations.size(); i++) {
+            addLeg(session, draft.legAnnotations.get(i));
+            if (i < draft.waypoints.size()) {
+                Waypoint waypoint = draft.waypoints.get(i);
+                addWaypoint(session, waypoint.east, waypoint.north, waypoint.annotation);
+            }
+        }
+        Integer resumed = draftSessions.get(draft);
+        if (resumed != null) {
+            reserve(9).put(RESUME).putInt(session).putInt(resumed);
+            appended();
+        }
+    }
+
+    /**
+     * Waits until every record appended so far has been written (and forced, if fsync is enabled).
+     * @throws IOException If writing failed.
+     */
+    public synchronized void flush() throws IOException {
+        long target = appended;
+        flushRequested = true;
+        notifyAll();
+        while (durable < target && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing journal", e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Flushes outstanding records and closes the journal file. The file is closed even if the
+     * flush fails, in which case its failure is thrown.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    private ByteBuffer reserve(int bytes) throws IOException {
+        if (failure != null) throw new IOException("Journal write failed", failure);
+        if (closed) throw new IOException("Journal is closed");
+        if (pending.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        return pending;
+    }
+
+    private void appended() {
+        appended++;
+        // Wake the writer to start the delay on the first record, and to write once the batch is full.
+        if (++pendingRecords == 1 || pendingRecords >= batchSize) {
+            notifyAll();
+        }
+    }
+
+    private void writeBatches() {
+        while (true) {
+            long batchEnd;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + maxDelayMillis;
+                while (!closed && pendingRecords < batchSize && durable == appended) {
+                    waitQuietly(0);
+                    deadline = System.currentTimeMillis() + maxDelayMillis;
+                }
+                // Wait for the batch to fill up, unless someone is waiting in flush() or close().
+                long now;
+                while (!closed && !flushRequested && pendingRecords < batchSize
+                        && (now = System.currentTimeMillis()) < deadline) {
+                    waitQuietly(deadline - now);
+                }
+                if (closed && durable == appended) return;
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                pendingRecords = 0;
+                flushRequested = false;
+                batchEnd = appended;
+            }
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                writing.clear();
+                if (fsync) {
+                    channel.force(false);
+                }
+                synchronized (this) {
+                    durable = batchEnd;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                logger.warning(() -> "JOURNAL WRITE FAILED: " + e);
+                synchronized (this) {
+                    failure = e;
+                    closed = true;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] encode(Object text) {
+        return text == null ? null : text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Annotation readAnnotation(ByteBuffer in) {
+        String text = readString(in);
+        return text == null ? null : Annotation.of(text);
+    }
+}
@@ -0,0 +1,14 @@
+package tourguide;
+
+/**
+ * Receives the events of a controller session, so a client can re-render only when something
+ * happened instead of polling {@link Controller#getOutput()}.
+ *
+ * A listener registered without an executor is called on the thread that caused the event, in the
+ * middle of the controller call, and must not call back into the controller.
+ */
+@FunctionalInterface
+public interface TourListener {
+
+    void onEvent(TourEvent event);
+}
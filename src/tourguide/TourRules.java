@@ -0,0 +1,64 @@
+package tourguide;
+
+/**
+ * The checks a tour must pass while it is authored, shared by {@link ControllerImp} and {@link TourImporter}
+ * so tours are held to the same rules however they are created.
+ */
+final class TourRules {
+
+    private TourRules() {}
+
+    /**
+     * Checks that a tour may be started with an id: every tour needs a non-empty one.
+     */
+    static Status checkId(String id) {
+        if (id == null || id.isEmpty()) {
+            return Status.Error.NO_TOUR_ID;
+        }
+        return Status.OK;
+    }
+
+    /**
+     * Checks that a waypoint may be added to a tour: it must be a finite point at least the
+     * waypoint separation from the last waypoint.
+     * @return OK, or the error to reject the waypoint with.
+     */
+    static Status checkWaypoint(Tour tour, double east, double north, Annotation annotation, double separation) {
+        if (!Double.isFinite(east) || !Double.isFinite(north)) {
+            return new Status.Error(Status.Error.Code.BAD_LOCATION, east, north);
+        }
+        if (tour.waypoints.size() > 0) {
+            Waypoint last = tour.waypoints.get(tour.waypoints.size()-1);
+            Displacement d = new Displacement(last.east - east, last.north - north);
+            if (d.distance() < separation) {
+                Waypoint cur = new Waypoint(east, north, annotation);
+                return new Status.Error(Status.Error.Code.WAYPOINT_TOO_CLOSE, cur, last);
+            }
+        }
+        return Status.OK;
+    }
+
+    /**
+     * Checks that a leg may be added to a tour: only one leg may lead to each waypoint.
+     */
+    static Status checkLeg(Tour tour) {
+        if (tour.legAnnotations.size() > tour.waypoints.size()) {
+            return new Status.Error(Status.Error.Code.TOO_MANY_LEGS, tour.id);
+        }
+        return Status.OK;
+    }
+
+    /**
+     * Checks that a tour may be finished: it needs a waypoint, and a leg leading to each waypoint.
+     */
+    static Status checkFinished(Tour tour) {
+        if (tour.waypoints.size() < 1) {
+            return Status.Error.NO_WAYPOINTS;
+        }
+        if (tour.legAnnotations.size() != tour.waypoints.size()) {
+            return new Status.Error(Status.Error.Code.LEGS_NOT_WAYPOINTS,
+                    tour.legAnnotations.size(), tour.waypoints.size());
+        }
+        return Status.OK;
+    }
+}
@@ -0,0 +1,69 @@
+package tourguide;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Where a {@link TourCatalog} keeps its tours: in one set of maps and indices, or spread over the
+ * nodes of a {@link PartitionedCatalog}. The catalog adds the settings, listeners and sessions;
+ * the store only holds, publishes and looks up tours, with the semantics documented on the
+ * catalog methods of the same names.
+ */
+interface TourStore {
+
+    Tour get(String id);
+
+    void add(Tour tour);
+
+    void addAll(Collection<Tour> tours);
+
+    /**
+     * Publishes a tour read from a catalog file without decoding its details.
+     */
+    void addUnloaded(Tour tour);
+
+    /**
+     * Takes over a tour moved from another store, as is. Tours not yet decoded stay that way.
+     */
+    void adopt(Tour tour);
+
+    /**
+     * Withdraws a tour, as when it moves to another store.
+     * @return The tour removed, or null if there was none.
+     */
+    Tour remove(String id);
+
+    long version();
+
+    int size();
+
+    /**
+     * @return The rough heap cost of the tours, as estimated by {@link ControllerMetrics}.
+     */
+    long estimatedBytes();
+
+    Collection<Tour> tours();
+
+    /**
+     * @return Every tour, decoded, in order of id.
+     */
+    List<Tour> loadedTours();
+
+    List<Tour> toursAfter(String afterId, int limit);
+
+    List<SpatialIndex.Hit> nearestTours(double east, double north, int count);
+
+    List<SpatialIndex.Hit> toursWithin(double east, double north, double radius);
+
+    List<TextIndex.Hit> search(String query, String afterId, int limit);
+
+    /**
+     * @return The hit for a tour in this store's text index, or null if it isn't here or doesn't match.
+     */
+    TextIndex.Hit searchHit(String query, String id);
+
+    /**
+     * Finds the tours matching a query that rank after a hit, which may be from another store.
+     */
+    List<TextIndex.Hit> searchHits(String query, TextIndex.Hit cursor, int limit);
+}
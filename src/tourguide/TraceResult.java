@@ -0,0 +1,49 @@
+package tourguide;
+
+import java.util.Arrays;
+
+/**
+ * The outcome of feeding a trace of location fixes to a controller in one call.
+ */
+public class TraceResult {
+
+    /**
+     * The stage before the first fix was processed.
+     */
+    public final int startStage;
+
+    /**
+     * The stage after the last fix was processed.
+     */
+    public final int endStage;
+
+    /**
+     * For each stage transition, the index of the fix that reached the waypoint.
+     * Entry i is the fix at which the stage advanced from startStage + i.
+     */
+    public final int[] arrivals;
+
+    /**
+     * The final location, i.e. the last fix in the trace.
+     */
+    public final double east, north;
+
+    public TraceResult(int startStage, int endStage, int[] arrivals, double east, double north) {
+        this.startStage = startStage;
+        this.endStage = endStage;
+        this.arrivals = arrivals;
+        this.east = east;
+        this.north = north;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceResult{" +
+                "startStage=" + startStage +
+                ", endStage=" + endStage +
+                ", arrivals=" + Arrays.toString(arrivals) +
+                ", east=" + east +
+                ", north=" + north +
+                '}';
+    }
+}
@@ -0,0 +1,78 @@
+package tourguide;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An Appendable that encodes characters as UTF-8 straight into a ByteBuffer, so chunks can be
+ * rendered into network or display buffers without intermediate Strings.
+ *
+ * A sink can be pointed at a new buffer with {@link #setBuffer}, so one instance can be reused for
+ * every render. Writing past the end of the buffer throws BufferOverflowException.
+ */
+public class Utf8Sink implements Appendable {
+
+    private ByteBuffer buffer;
+
+    // High surrogate waiting for the low surrogate that completes it.
+    private char highSurrogate;
+
+    public Utf8Sink(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        highSurrogate = 0;
+    }
+
+    @Override
+    public Utf8Sink append(CharSequence csq) {
+        return append(csq == null ? "null" : csq, 0, csq == null ? 4 : csq.length());
+    }
+
+    @Override
+    public Utf8Sink append(CharSequence csq, int start, int end) {
+        if (csq == null) csq = "null";
+        for (int i = start; i < end; i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Utf8Sink append(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                buffer.put((byte) (0xf0 | (codePoint >> 18)))
+                        .put((byte) (0x80 | ((codePoint >> 12) & 0x3f)))
+                        .put((byte) (0x80 | ((codePoint >> 6) & 0x3f)))
+                        .put((byte) (0x80 | (codePoint & 0x3f)));
+                return this;
+            }
+            // Unpaired surrogate, encoded as '?' like String.getBytes does.
+            buffer.put((byte) '?');
+        }
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xc0 | (c >> 6)))
+                    .put((byte) (0x80 | (c & 0x3f)));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xe0 | (c >> 12)))
+                    .put((byte) (0x80 | ((c >> 6) & 0x3f)))
+                    .put((byte) (0x80 | (c & 0x3f)));
+        }
+        return this;
+    }
+}